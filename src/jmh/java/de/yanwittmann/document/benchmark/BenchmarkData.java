@@ -0,0 +1,97 @@
+package de.yanwittmann.document.benchmark;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Synthetic inputs that resemble the data the application processes. All generators are seeded, so that every run
+ * measures the same input.
+ */
+final class BenchmarkData {
+    private static final String[] WORDS = {
+            "Rechnung", "invoice", "the", "document", "Vertrag", "date", "amount", "total", "Kunde", "customer",
+            "2024-03-01", "EUR", "12,99", "IBAN", "DE89370400440532013000", "Seite", "page", "Steuer", "tax", "and"
+    };
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * A response of a reasoning model: a thinking section of the given length that contains braces, quotes and invalid
+     * JSON fragments, followed by the answer.
+     */
+    static String reasoningResponse(int length, String answer) {
+        final Random random = new Random(length);
+        final StringBuilder thinking = new StringBuilder("<think>\n");
+        while (thinking.length() < length) {
+            switch (random.nextInt(12)) {
+                case 0 -> thinking.append("Maybe the path should be {Finanzen/Rechnungen} or {Versicherungen}. ");
+                case 1 -> thinking.append("The user wants {\"path\": maybe this, or that} but not quite. ");
+                case 2 -> thinking.append("Looking at the \"directory structure\" again.\n");
+                case 3 -> thinking.append("\n\n");
+                default -> thinking.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+        }
+        return thinking.append("\n</think>\n\n").append(answer).toString();
+    }
+
+    /**
+     * OCR output with the typical runs of spaces and empty lines between text blocks.
+     */
+    static String ocrText(int length) {
+        final Random random = new Random(length);
+        final StringBuilder text = new StringBuilder(length + 64);
+        while (text.length() < length) {
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+            switch (random.nextInt(8)) {
+                case 0 -> text.append("     ");
+                case 1 -> text.append("\n\n\n");
+                case 2 -> text.append(" \n \n");
+                default -> text.append(' ');
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Creates a directory tree with the given number of files below the temporary directory, or reuses the one that
+     * was created by an earlier run. Top-level directories contain year directories with category subdirectories,
+     * most files are named like the files the application creates.
+     */
+    static Path directoryTree(int files) throws IOException {
+        final Path root = Path.of(System.getProperty("java.io.tmpdir"), "adc-benchmark-tree-" + files);
+        final Path complete = root.resolve(".complete");
+        if (Files.exists(complete)) {
+            return root;
+        }
+
+        final Random random = new Random(files);
+        final int filesPerDirectory = 50;
+        final int directories = Math.max(1, files / filesPerDirectory);
+        int created = 0;
+        for (int d = 0; d < directories; d++) {
+            final Path dir = root.resolve("Kategorie " + (d % 12))
+                    .resolve(String.valueOf(2000 + (d / 12) % 25))
+                    .resolve("Ordner " + d);
+            Files.createDirectories(dir);
+            if (d % 10 == 0) {
+                Files.writeString(dir.getParent().resolve(".docinfo"), "Documents of category " + (d % 12), StandardCharsets.UTF_8);
+            }
+            for (int f = 0; f < filesPerDirectory && created < files; f++, created++) {
+                final String name = random.nextInt(5) == 0
+                        ? "scan_" + created + ".pdf"
+                        : String.format("%04d-%02d-%02d %s %s %d.pdf", 2000 + random.nextInt(25), 1 + random.nextInt(12),
+                        1 + random.nextInt(28), WORDS[random.nextInt(WORDS.length)], WORDS[random.nextInt(WORDS.length)], created);
+                final Path file = dir.resolve(name);
+                if (!Files.exists(file)) {
+                    Files.createFile(file);
+                }
+            }
+        }
+        Files.createFile(complete);
+        return root;
+    }
+}
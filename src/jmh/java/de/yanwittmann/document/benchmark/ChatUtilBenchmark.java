@@ -0,0 +1,66 @@
+package de.yanwittmann.document.benchmark;
+
+import de.yanwittmann.document.ai.ChatUtil;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChatUtilBenchmark {
+
+    @Param({"2000", "50000"})
+    public int responseLength;
+
+    private String template;
+    private Map<String, String> variables;
+    private String response;
+    private String unbalancedQuoteResponse;
+
+    @Setup
+    public void setup() throws IOException {
+        template = ChatUtil.readFile("chat/suggest-path-01.txt");
+        variables = Map.of(
+                "suggested_filename", "2024-03-01 Rechnung Stadtwerke Strom Abschlag 12,99 EUR.pdf",
+                "ocr_summary", BenchmarkData.ocrText(responseLength / 10),
+                "directory_structure", BenchmarkData.ocrText(responseLength));
+
+        final String answer = "{\"path\": \"Finanzen/Rechnungen/2024\"}";
+        response = BenchmarkData.reasoningResponse(responseLength, answer);
+        // an unbalanced quote in the text in front of the answer must not hide the answer in a string
+        unbalancedQuoteResponse = BenchmarkData.reasoningResponse(responseLength, "The file \"Rechnung.pdf belongs to\n" + answer);
+        for (String input : new String[]{response, unbalancedQuoteResponse}) {
+            final JSONObject extracted = ChatUtil.extractJsonObject(input);
+            if (extracted == null || !extracted.similar(new JSONObject(answer))) {
+                throw new IllegalStateException("The answer is not found in the benchmark input: " + extracted);
+            }
+        }
+    }
+
+    @Benchmark
+    public String replacePlaceholders() {
+        return ChatUtil.replacePlaceholders(template, variables);
+    }
+
+    @Benchmark
+    public JSONObject extractJsonObject() {
+        return ChatUtil.extractJsonObject(response);
+    }
+
+    @Benchmark
+    public JSONObject extractJsonObjectAfterUnbalancedQuote() {
+        return ChatUtil.extractJsonObject(unbalancedQuoteResponse);
+    }
+
+    @Benchmark
+    public String filterThinking() {
+        return ChatUtil.filterThinking(response);
+    }
+}
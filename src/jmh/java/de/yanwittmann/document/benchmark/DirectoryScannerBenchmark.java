@@ -0,0 +1,54 @@
+package de.yanwittmann.document.benchmark;
+
+import de.yanwittmann.document.dir.DirectoryScanner;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The trees are created on disk below the temporary directory on the first run and reused afterwards, creating the
+ * largest one takes a few minutes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DirectoryScannerBenchmark {
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int files;
+
+    private String rootPath;
+    private DirectoryScanner scanner;
+
+    @Setup
+    public void setup() throws IOException {
+        rootPath = BenchmarkData.directoryTree(files).toString();
+        scanner = new DirectoryScanner(rootPath);
+    }
+
+    @Benchmark
+    public DirectoryScanner construct() throws IOException {
+        return new DirectoryScanner(rootPath);
+    }
+
+    @Benchmark
+    public JSONObject toShortJson() {
+        return scanner.toShortJson();
+    }
+
+    @Benchmark
+    public JSONObject toJson() {
+        return scanner.toJson(5, true);
+    }
+
+    @Benchmark
+    public Map<String, DirectoryScanner.DirectoryNode> getExampleFiles() {
+        return scanner.getExampleFiles(4);
+    }
+}
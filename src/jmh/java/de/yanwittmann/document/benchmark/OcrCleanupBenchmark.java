@@ -0,0 +1,40 @@
+package de.yanwittmann.document.benchmark;
+
+import de.yanwittmann.document.model.DFileCategorization;
+import de.yanwittmann.document.pdf.OCRProcessor;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OcrCleanupBenchmark {
+
+    @Param({"5000", "100000"})
+    public int ocrLength;
+
+    private final OCRProcessor ocr = new OCRProcessor();
+    private String ocrText;
+    private DFileCategorization categorization;
+
+    @Setup
+    public void setup() {
+        ocrText = BenchmarkData.ocrText(ocrLength);
+        categorization = new DFileCategorization("Finanzen/../Rechnungen//2024",
+                "2024-03-01 Rechnung Stadtwerke Münster Strom/Gas Abschlag 12,99€ <Kunde 4711> \"März\" | Vertrag: SW-2022489349.pdf");
+    }
+
+    @Benchmark
+    public String cleanOcrResult() {
+        return ocr.cleanOcrResult(ocrText, 3000);
+    }
+
+    @Benchmark
+    public DFileCategorization cleanFilename() {
+        return categorization.cleanFilename();
+    }
+}
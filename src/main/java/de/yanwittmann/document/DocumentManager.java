@@ -1,22 +1,46 @@
 package de.yanwittmann.document;
 
 import de.yanwittmann.document.ai.ChatUtil;
+import de.yanwittmann.document.ai.CompletionCache;
 import de.yanwittmann.document.ai.CompletionClient;
+import de.yanwittmann.document.ai.PromptTemplate;
 import de.yanwittmann.document.dir.DirectoryScanner;
+import de.yanwittmann.document.dir.DuplicateIndex;
 import de.yanwittmann.document.dir.FileMover;
+import de.yanwittmann.document.dir.InboxWatcher;
+import de.yanwittmann.document.dir.PromptContext;
+import de.yanwittmann.document.history.ClassificationHistory;
+import de.yanwittmann.document.log.TraceLog;
+import de.yanwittmann.document.metrics.MetricsExporter;
+import de.yanwittmann.document.metrics.MetricsRegistry;
 import de.yanwittmann.document.model.Config;
+import de.yanwittmann.document.model.ConsoleBlock;
 import de.yanwittmann.document.model.DFileCategorization;
+import de.yanwittmann.document.model.SpeculativePathCheck;
 import de.yanwittmann.document.model.TimeStats;
+import de.yanwittmann.document.pdf.DocumentFingerprint;
 import de.yanwittmann.document.pdf.OCRProcessor;
+import de.yanwittmann.document.pdf.OcrCache;
+import de.yanwittmann.document.pdf.PageExtraction;
+import de.yanwittmann.document.pdf.PageRenderer;
+import de.yanwittmann.document.pipeline.Checkpoint;
+import de.yanwittmann.document.pipeline.CheckpointJournal;
+import de.yanwittmann.document.pipeline.CheckpointedMover;
+import de.yanwittmann.document.pipeline.DocumentJob;
+import de.yanwittmann.document.pipeline.ProcessingPipeline;
 import org.apache.commons.io.FileUtils;
-import org.json.JSONArray;
 import org.json.JSONObject;
 
+import javax.management.JMException;
 import java.io.File;
 import java.io.IOException;
 import java.time.LocalDate;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 public class DocumentManager {
 
@@ -25,18 +49,121 @@ public class DocumentManager {
     private final CompletionClient imageDetection;
     private final FileMover fileMover;
     private final OCRProcessor ocr = new OCRProcessor();
+    private final OcrCache ocrCache;
+    private final ExecutorService speculativeExecutor;
+    private final TraceLog traceLog;
+    private final ClassificationHistory history;
+    private final DuplicateIndex duplicateIndex;
+    private final boolean skipDuplicates;
+    private final CheckpointJournal checkpoints;
+    private final CheckpointedMover checkpointedMover;
+
+    /**
+     * Length of the OCR text that is passed to the model, the rest is cut out of the middle of the document.
+     */
+    private static final int OCR_TEXT_LENGTH = 3000;
+
+    private static final Set<String> PROMPT_PARAMETERS = Set.of(
+            "ocr_text", "ocr_summary", "suggested_filename", "directory_structure", "docfiles",
+            "example_filenames", "current_date", "top_level_directories");
+
+    private static final List<String> PROMPT_TEMPLATES = List.of(
+            "chat/extract-image-content-01.txt", "chat/summarize-file-01.txt",
+            "chat/generate-filename-01.txt", "chat/suggest-path-01.txt",
+            "chat/session-context-01.txt", "chat/session-summarize-01.txt",
+            "chat/session-filename-01.txt", "chat/session-path-01.txt",
+            "chat/suggest-path-speculative-01.txt", "chat/session-path-speculative-01.txt");
 
     public DocumentManager() throws IOException {
+        // fail before processing the first document if a template uses a placeholder that is never filled
+        PromptTemplate.checkPlaceholders(PROMPT_TEMPLATES, PROMPT_PARAMETERS);
+
         this.scanner = new DirectoryScanner(Config.Props.DOCUMENTS_REF_DIR_BASEPATH.get());
+        final CompletionCache completionCache = Config.Props.AI_CACHE_ENABLED.getBoolean()
+                ? new CompletionCache(new File(Config.Props.AI_CACHE_DIR.get()),
+                Config.Props.AI_CACHE_MAX_SIZE_MB.getLong() * 1024 * 1024,
+                Config.Props.AI_CACHE_TTL_HOURS.getLong() * 60 * 60 * 1000,
+                Config.Props.AI_CACHE_MEMORY_ENTRIES.getInt())
+                : null;
         this.textCompletion = CompletionClient.builder()
                 .baseUrl(Config.Props.AI_CHAT_BASEURL.get())
                 .model(Config.Props.AI_CHAT_MODEL.get())
+                .cache(completionCache)
                 .build();
+        final String imageBaseUrl = Config.Props.AI_IMAGE_BASEURL.get();
         this.imageDetection = CompletionClient.builder()
-                .baseUrl(Config.Props.AI_CHAT_BASEURL.get())
+                .baseUrl(imageBaseUrl == null || imageBaseUrl.isBlank() ? Config.Props.AI_CHAT_BASEURL.get() : imageBaseUrl)
                 .model(Config.Props.AI_IMAGE_MODEL.get())
+                .cache(completionCache)
                 .build();
         this.fileMover = new FileMover(Config.Props.DOCUMENTS_MOVE_DIR_BASEPATH.get());
+        this.ocrCache = Config.Props.OCR_CACHE_ENABLED.getBoolean()
+                ? new OcrCache(new File(Config.Props.OCR_CACHE_DIR.get()), Config.Props.OCR_CACHE_MAX_SIZE_MB.getLong() * 1024 * 1024)
+                : null;
+        this.speculativeExecutor = Config.Props.AI_SPECULATIVE_PATH_ENABLED.getBoolean()
+                ? Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, "speculative-path");
+            thread.setDaemon(true);
+            return thread;
+        })
+                : null;
+        this.traceLog = Config.Props.TRACE_ENABLED.getBoolean()
+                ? new TraceLog(new File(Config.Props.TRACE_FILE.get()),
+                Config.Props.TRACE_QUEUE_CAPACITY.getInt(),
+                parseQueuePolicy(Config.Props.TRACE_QUEUE_POLICY.get()),
+                Config.Props.TRACE_ROTATE_SIZE_MB.getLong() * 1024 * 1024,
+                Config.Props.TRACE_ROTATE_INTERVAL_HOURS.getLong() * 60 * 60 * 1000,
+                Config.Props.TRACE_ROTATE_KEEP.getInt(),
+                Config.Props.TRACE_ROTATE_COMPRESS.getBoolean())
+                : null;
+        this.history = Config.Props.HISTORY_ENABLED.getBoolean()
+                ? new ClassificationHistory(new File(Config.Props.HISTORY_FILE.get()),
+                Config.Props.HISTORY_THRESHOLD.getDouble(),
+                Config.Props.HISTORY_MAX_ENTRIES.getInt())
+                : null;
+        final String duplicatesCheck = Config.Props.DUPLICATES_CHECK.get().trim();
+        if (!List.of("off", "flag", "skip").contains(duplicatesCheck)) {
+            throw new IllegalArgumentException("Unknown duplicates check: " + duplicatesCheck);
+        }
+        this.duplicateIndex = duplicatesCheck.equals("off") ? null
+                : new DuplicateIndex(new File(Config.Props.DUPLICATES_INDEX_FILE.get()),
+                Stream.of(Config.Props.DOCUMENTS_REF_DIR_BASEPATH.get(), Config.Props.DOCUMENTS_MOVE_DIR_BASEPATH.get()).filter(Objects::nonNull).map(File::new).toList(),
+                Config.Props.DUPLICATES_NEAR_DISTANCE.getInt());
+        this.skipDuplicates = duplicatesCheck.equals("skip");
+        this.checkpoints = Config.Props.CHECKPOINT_ENABLED.getBoolean()
+                ? new CheckpointJournal(new File(Config.Props.CHECKPOINT_DIR.get()), Config.Props.CHECKPOINT_TTL_HOURS.getLong() * 60 * 60 * 1000)
+                : null;
+        this.checkpointedMover = checkpoints == null ? null : new CheckpointedMover(checkpoints, fileMover);
+        if (checkpoints != null) {
+            completeInterruptedMoves();
+        }
+        if (traceLog != null) {
+            MetricsRegistry.get().gauge("adc_trace_queue_depth", "Trace log entries waiting to be written", traceLog::getQueueSize);
+        }
+
+        final MetricsExporter metricsExporter = new MetricsExporter(MetricsRegistry.get());
+        final String metricsFile = Config.Props.METRICS_PROMETHEUS_FILE.get();
+        if (metricsFile != null && !metricsFile.isBlank()) {
+            metricsExporter.startFileExport(new File(metricsFile), Config.Props.METRICS_PROMETHEUS_INTERVAL_SECONDS.getLong());
+        }
+        if (Config.Props.METRICS_JMX_ENABLED.getBoolean()) {
+            try {
+                metricsExporter.registerMBean();
+            } catch (JMException e) {
+                printErrorBox("Could not register the metrics MBean: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return whether the trace log blocks when its queue is full
+     */
+    private static boolean parseQueuePolicy(String policy) {
+        return switch (policy.trim()) {
+            case "block" -> true;
+            case "drop" -> false;
+            default -> throw new IllegalArgumentException("Unknown trace queue policy: " + policy);
+        };
     }
 
     public static void main(String[] args) throws IOException {
@@ -54,33 +181,110 @@ public class DocumentManager {
         }
     }
 
-    private void processFiles(List<File> files) {
+    private List<DocumentJob> processFiles(List<File> files) {
+        if (duplicateIndex != null) {
+            refreshDuplicateIndex();
+        }
+        try {
+            return Config.Props.PIPELINE_ENABLED.getBoolean() ? processFilesPipelined(files) : processFilesSequentially(files);
+        } finally {
+            if (duplicateIndex != null) {
+                saveDuplicateIndex();
+            }
+        }
+    }
+
+    private List<DocumentJob> processFilesSequentially(List<File> files) {
         final TimeStats totalTime = new TimeStats();
 
+        final List<DocumentJob> jobs = new ArrayList<>();
         for (int i = 0; i < files.size(); i++) {
-            final File processFile = files.get(i);
-            final TimeStats fileTime = new TimeStats();
-
-            printHorizontalLine("┌── " + "[%02d / %02d] ".formatted(i + 1, files.size()));
-            System.out.printf("│ %s%n", processFile.getName());
+            final DocumentJob job = new DocumentJob(i, files.size(), files.get(i), ConsoleBlock.direct());
+            jobs.add(job);
+            printJobHeader(job);
 
             try {
-                final DFileCategorization categorization = categorizeFile(processFile);
-                final DFileCategorization finalCategorization = categorization.cleanFilename().retype(processFile.getName());
-
-                fileMover.moveFile(processFile, finalCategorization);
-                printStep("Moved file", finalCategorization.toString(), fileTime.stopFormatted());
+                if (duplicateIndex != null) {
+                    checkDuplicate(job);
+                }
+                if (!job.isSkipped()) {
+                    extract(job);
+                    summarize(job);
+                    generateFilename(job);
+                    generatePath(job);
+                    move(job);
+                }
             } catch (Exception e) {
-                printErrorBox("Processing failed: " + e.getMessage());
-                e.printStackTrace();
+                job.setFailure(e);
             }
 
-            printHorizontalLine("└");
+            printJobFooter(job);
         }
 
         printHorizontalLine("┌");
+        printHistoryStats();
         printStep("Finished classification", files.size() + " file" + (files.size() == 1 ? "" : "s") + " processed", totalTime.stopFormatted());
         printHorizontalLine("└");
+        return jobs;
+    }
+
+    private List<DocumentJob> processFilesPipelined(List<File> files) {
+        final TimeStats totalTime = new TimeStats();
+
+        final List<DocumentJob> jobs = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            final DocumentJob job = new DocumentJob(i, files.size(), files.get(i), ConsoleBlock.buffered());
+            printJobHeader(job);
+            jobs.add(job);
+        }
+
+        final ProcessingPipeline pipeline = new ProcessingPipeline(Config.Props.PIPELINE_QUEUE_CAPACITY.getInt());
+        if (duplicateIndex != null) {
+            pipeline.stage("duplicates", 1, this::checkDuplicate);
+        }
+        pipeline.stage("extract", Config.Props.PIPELINE_WORKERS_EXTRACT.getInt(), this::extract)
+                .stage("summarize", Config.Props.PIPELINE_WORKERS_SUMMARIZE.getInt(), this::summarize)
+                .stage("name", Config.Props.PIPELINE_WORKERS_NAME.getInt(), this::generateFilename)
+                .stage("place", Config.Props.PIPELINE_WORKERS_PLACE.getInt(), this::generatePath)
+                .stage("move", Config.Props.PIPELINE_WORKERS_MOVE.getInt(), this::move);
+
+        final List<ProcessingPipeline.StageStats> stageStats;
+        try {
+            stageStats = pipeline.run(jobs, job -> {
+                printJobFooter(job);
+                job.getConsole().flush();
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            printErrorBox("Pipeline interrupted");
+            return jobs;
+        }
+
+        printHorizontalLine("┌");
+        for (ProcessingPipeline.StageStats stats : stageStats) {
+            printStep("Stage " + stats.getName() + " x" + stats.getWorkers(), "%d done, %.1f/min, wait Ø %s, busy Ø %s".formatted(
+                    stats.getProcessed().sum(), stats.getThroughputPerMinute(),
+                    TimeStats.formatDuration(stats.getAverageWaitNanos()), TimeStats.formatDuration(stats.getAverageBusyNanos())), "");
+        }
+        printHistoryStats();
+        printStep("Finished classification", files.size() + " file" + (files.size() == 1 ? "" : "s") + " processed", totalTime.stopFormatted());
+        printHorizontalLine("└");
+        return jobs;
+    }
+
+    private static void printJobHeader(DocumentJob job) {
+        job.getConsole().horizontalLine("┌── " + "[%02d / %02d] ".formatted(job.getIndex() + 1, job.getTotal()));
+        job.getConsole().line(job.getFile().getName());
+    }
+
+    private static void printJobFooter(DocumentJob job) {
+        MetricsRegistry.get().counter("adc_documents_total", "Processed documents by result", "result", job.isFailed() ? "failed" : job.isSkipped() ? "skipped" : "moved").increment();
+        if (job.isFailed()) {
+            job.getConsole().errorBox("Processing failed: " + job.getFailure().getMessage());
+            job.getFailure().printStackTrace();
+        } else {
+            job.getConsole().horizontalLine("└");
+        }
     }
 
     private void handleNormalMode(String[] args) {
@@ -118,17 +322,106 @@ public class DocumentManager {
             return;
         }
 
+        if (Config.Props.DOCUMENTS_REF_DIR_WATCH.getBoolean()) {
+            try {
+                scanner.startWatching();
+            } catch (IOException e) {
+                printErrorBox("Could not watch reference directory, changes require a restart: " + e.getMessage());
+            }
+        }
+
+        final String quarantinePath = Config.Props.AUTODETECT_QUARANTINE_DIR.get();
+        final InboxWatcher watcher;
+        try {
+            watcher = new InboxWatcher(directory,
+                    quarantinePath == null || quarantinePath.isBlank() ? new File(directory, ".quarantine") : new File(quarantinePath),
+                    Config.Props.AUTODETECT_STABILITY_MS.getLong(),
+                    Config.Props.AUTODETECT_RETRY_BASE_MINUTES.getLong() * 60 * 1000,
+                    Config.Props.AUTODETECT_RETRY_MAX_ATTEMPTS.getInt());
+        } catch (IOException e) {
+            printErrorBox("Could not watch directory for -autodetect: " + e.getMessage());
+            return;
+        }
+
         System.out.println("Starting autodetect mode on directory: " + dirPath);
         while (true) {
+            final List<File> files;
             try {
-                List<File> files = (List<File>) FileUtils.listFiles(directory, null, true);
+                files = watcher.awaitReadyFiles();
+            } catch (InterruptedException e) {
+                System.out.println("Autodetect mode interrupted. Exiting.");
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException e) {
+                printErrorBox("Failed to check directory: " + e.getMessage());
+                sleep(3_000);
+                continue;
+            }
 
-                if (!files.isEmpty()) {
-                    processFiles(files);
+            for (DocumentJob job : processFiles(files)) {
+                try {
+                    if (job.isSkipped() && job.getFile().exists()) {
+                        System.out.println("Moved skipped " + job.getFile().getName() + " to " + watcher.setAsideDuplicate(job.getFile()));
+                    } else if (!job.isFailed()) {
+                        watcher.markDone(job.getFile());
+                    } else if (job.getFile().exists() && !watcher.quarantine(job.getFile(), job.getFailure())) {
+                        printErrorBox("Giving up on " + job.getFile().getName() + ", it stays in quarantine");
+                    }
+                } catch (IOException e) {
+                    printErrorBox("Failed to quarantine " + job.getFile().getName() + ": " + e.getMessage());
                 }
-            } catch (Exception ignored) {
             }
-            sleep(3_000);
+        }
+    }
+
+    /**
+     * Fingerprints the files in the archive directories that were added or changed since the last run.
+     */
+    private void refreshDuplicateIndex() {
+        final TimeStats refreshTime = new TimeStats();
+        try {
+            final DuplicateIndex.RefreshResult result = duplicateIndex.refresh();
+            printHorizontalLine("┌");
+            printStep("Duplicate index", "%d files, %d new or changed, %d removed".formatted(result.files(), result.fingerprinted(), result.removed()), refreshTime.stopFormatted());
+            printHorizontalLine("└");
+        } catch (IOException e) {
+            printErrorBox("Could not update the duplicate index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Saves the files that were moved into the archive directories since the last save.
+     */
+    private void saveDuplicateIndex() {
+        try {
+            duplicateIndex.flush();
+        } catch (IOException e) {
+            printErrorBox("Could not save the duplicate index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Looks the document up in the archive directories, see <code>duplicates.check</code>.
+     */
+    private void checkDuplicate(DocumentJob job) throws IOException {
+        final TimeStats checkTime = new TimeStats();
+        final DocumentFingerprint fingerprint = DocumentFingerprint.of(job.getFile());
+        job.setFingerprint(fingerprint);
+        final DuplicateIndex.Match match = duplicateIndex.find(job.getFile(), fingerprint);
+        if (match == null) {
+            job.getConsole().step("Duplicate check", "no duplicate", checkTime.stopFormatted(stageDuration("duplicates")));
+            return;
+        }
+
+        MetricsRegistry.get().counter("adc_duplicates_total", "Documents that were already in the archive directories", "kind", match.exact() ? "exact" : "near").increment();
+        trace(job, "duplicates", match.exact() ? "identical" : "near duplicate, " + match.distance() + "% different", match.file().getPath());
+        final String details = (match.exact() ? "identical to " : "looks like ") + match.file().getPath()
+                + (match.exact() ? "" : " (" + match.distance() + "% different)");
+        // a near duplicate may also be the next bill on the same form, so only identical files are skipped
+        final boolean skip = skipDuplicates && match.exact();
+        job.getConsole().step(skip ? "Duplicate skipped" : "Duplicate found", details, checkTime.stopFormatted(stageDuration("duplicates")));
+        if (skip) {
+            job.setSkipReason("duplicate of " + match.file().getPath());
         }
     }
 
@@ -136,104 +429,483 @@ public class DocumentManager {
         return LocalDate.now().toString();
     }
 
-    private DFileCategorization categorizeFile(File file) throws Exception {
-        final TimeStats ocrTime = new TimeStats();
-        final String ocrText;
-        if (Config.Props.OCR_METHOD.get().equals("tesseract")) {
-            ocrText = ocr.cleanOcrResult(ocr.processFile(file, ocr::runTesseractOCR), 3000);
-        } else if (Config.Props.OCR_METHOD.get().equals("ollama")) {
-            ocrText = ocr.cleanOcrResult(ocr.processFile(file, f -> imageDetection.generateImageTextCompletion(ChatUtil.fillTemplateFromClasspath("chat/extract-image-content-01.txt", Collections.emptyMap()), f, 0.6)), 3000);
-        } else {
-            throw new RuntimeException("Unknown OCR method: " + Config.Props.OCR_METHOD.get());
+    private void extract(DocumentJob job) throws Exception {
+        if (checkpoints != null) {
+            restoreCheckpoint(job);
         }
-        print(ocrText);
-        printStep(Config.Props.OCR_METHOD.get() + " OCR", ocrText.length() + " chars", ocrTime.stopFormatted());
-
-        final JSONArray exampleFiles = new JSONArray();
-        for (Map.Entry<String, DirectoryScanner.DirectoryNode> entry : scanner.getExampleFiles(4).entrySet()) {
-            exampleFiles.put(new JSONObject()
-                    .put("path", entry.getValue().path(true))
-                    .put("filename", entry.getKey())
-            );
+        if (job.getOcrText() == null) {
+            job.setOcrText(extractText(job));
+            saveCheckpoint(job, "extract");
         }
 
-        final Map<String, String> promptParameters = new HashMap<>(Map.of(
+        final String ocrText = job.getOcrText();
+        final PromptContext promptContext = scanner.getPromptContext();
+        job.getPromptParameters().putAll(Map.of(
                 "ocr_text", ocrText,
-                "directory_structure", scanner.toShortJson().toString(1),
-                "docfiles", scanner.getNodesWithDocfileContent().stream()
-                        .map(n -> n.path(true) + " --> " + n.getDocfileContent())
-                        .collect(Collectors.joining("\n")),
-                "example_filenames", exampleFiles.toString(1),
+                "directory_structure", promptContext.getDirectoryStructure(),
+                "docfiles", promptContext.getDocfiles(),
+                "example_filenames", promptContext.sampleExampleFilenames(4),
                 "current_date", getCurrentDate(),
-                "top_level_directories", new JSONArray(scanner.getTopLevelDirectories().stream()
-                        .map(DirectoryScanner.DirectoryNode::getName)
-                        .toList()).toString()
+                "top_level_directories", promptContext.getTopLevelDirectories()
         ));
+        if (Config.Props.AI_CONTEXT_PRUNING_ENABLED.getBoolean()) {
+            putRelevantContext(job, promptContext, ocrText);
+        }
+    }
+
+    private String extractText(DocumentJob job) throws Exception {
+        final File file = job.getFile();
+        final String method = Config.Props.OCR_METHOD.get();
+        final OCRProcessor.TextExtractor textExtractor;
+        final PageRenderer pageRenderer;
+        String ocrVariant;
+        if (method.equals("tesseract")) {
+            textExtractor = ocr::runTesseractOCR;
+            pageRenderer = PageRenderer.forTesseract(Config.Props.OCR_TESSERACT_DPI.getInt(), Config.Props.OCR_TESSERACT_IMAGE_TYPE.get());
+            ocrVariant = method + "|" + Config.Props.OCR_LANGUAGE.get();
+        } else if (method.equals("ollama")) {
+            textExtractor = image -> imageDetection.generateImageTextCompletion(ChatUtil.fillTemplateFromClasspath("chat/extract-image-content-01.txt", Collections.emptyMap()), image, 0.6);
+            pageRenderer = PageRenderer.forVisionModel(Config.Props.OCR_OLLAMA_IMAGE_SIZE.getInt());
+            ocrVariant = method + "|" + Config.Props.AI_IMAGE_MODEL.get();
+        } else {
+            throw new RuntimeException("Unknown OCR method: " + method);
+        }
+        ocrVariant += "|" + pageRenderer.describe();
+        final int ocrTextBudget = Config.Props.OCR_BUDGET_ENABLED.getBoolean() ? OCR_TEXT_LENGTH : 0;
+        if (ocrTextBudget > 0) {
+            ocrVariant += "|budget" + ocrTextBudget;
+        }
+        if (Config.Props.OCR_TEXTLAYER_ENABLED.getBoolean()) {
+            ocrVariant += "|textlayer" + Config.Props.OCR_TEXTLAYER_MIN_CHARS.getInt();
+        }
+
+        List<String> pages = null;
+        String cacheKey = null;
+        if (ocrCache != null) {
+            final TimeStats cacheTime = new TimeStats();
+            cacheKey = OcrCache.key(file, ocrVariant);
+            pages = ocrCache.get(cacheKey);
+            job.getConsole().step("OCR cache", pages != null ? "hit, " + pages.size() + " page" + (pages.size() == 1 ? "" : "s") : "miss", cacheTime.stopFormatted());
+        }
+
+        final TimeStats ocrTime = new TimeStats();
+        String extractionDetails = "";
+        if (pages == null) {
+            final PageExtraction extraction = ocr.processFilePages(file, timePages(textExtractor), pageRenderer, OCRProcessor.getPageConcurrency(), ocrTextBudget);
+            pages = extraction.getPages();
+            extractionDetails = ", " + extraction.describe();
+            if (ocrCache != null) {
+                ocrCache.put(cacheKey, ocrVariant, pages);
+            }
+        }
+
+        final String ocrText = ocr.cleanOcrResult(OCRProcessor.joinPages(pages), OCR_TEXT_LENGTH);
+        trace(job, "extract", "ocr text", ocrText);
+        job.getConsole().step(method + " OCR", ocrText.length() + " chars" + extractionDetails, ocrTime.stopFormatted(stageDuration("extract")));
+        return ocrText;
+    }
+
+    /**
+     * Replaces the directory structure and docfiles of the prompts with the branches of the reference tree that match
+     * the text best, see {@link PromptContext#selectRelevant(String, int)}.
+     */
+    private static void putRelevantContext(DocumentJob job, PromptContext promptContext, String text) {
+        final TimeStats contextTime = new TimeStats();
+        final PromptContext.RelevantContext context = promptContext.selectRelevant(text, Config.Props.AI_CONTEXT_PRUNING_TOP_K.getInt());
+        job.getPromptParameters().put("directory_structure", context.directoryStructure());
+        job.getPromptParameters().put("docfiles", context.docfiles());
+        job.getConsole().step("Directory context", context.directories() + " of " + context.totalDirectories() + " directories", contextTime.stopFormatted());
+    }
+
+    /**
+     * @param stage <code>ocr_page</code> for a single page, <code>document</code> for all stages of a document, or
+     *              the name of a stage
+     */
+    private static MetricsRegistry.Histogram stageDuration(String stage) {
+        return MetricsRegistry.get().durationHistogram("adc_stage_duration_seconds", "Time spent per document in a processing stage", "stage", stage);
+    }
+
+    private static OCRProcessor.TextExtractor timePages(OCRProcessor.TextExtractor textExtractor) {
+        final MetricsRegistry.Histogram pageDuration = stageDuration("ocr_page");
+        return image -> {
+            final TimeStats pageTime = new TimeStats();
+            try {
+                return textExtractor.apply(image);
+            } finally {
+                pageTime.stop(pageDuration);
+            }
+        };
+    }
 
-        final String ocrSummary;
+    private void summarize(DocumentJob job) throws Exception {
         try {
             final TimeStats summaryTime = new TimeStats();
-            final String prompt = print(ChatUtil.fillTemplateFromClasspath("chat/summarize-file-01.txt", promptParameters));
-            final String completion = print(ChatUtil.filterThinking(textCompletion.generateTextCompletion(prompt)));
-            ocrSummary = completion;
-            printStep("Document summarized", ocrSummary.length() + " chars", summaryTime.stopFormatted());
-            promptParameters.put("ocr_summary", ocrSummary);
+            final boolean pruning = Config.Props.AI_CONTEXT_PRUNING_ENABLED.getBoolean();
+            if (!pruning) {
+                openSession(job);
+            }
+            if (job.getSummary() == null) {
+                final StepCompletion completion = complete(job, job.getPromptParameters(), "summarize", "chat/summarize-file-01.txt", "chat/session-summarize-01.txt", false);
+                final String ocrSummary = trace(job, "summarize", "summary", ChatUtil.filterThinking(completion.text()));
+                job.getConsole().step("Document summarized", ocrSummary.length() + " chars", summaryTime.stopFormatted(stageDuration("summarize")));
+                printPromptEvaluation(job, completion);
+                job.setSummary(ocrSummary);
+                saveCheckpoint(job, "summarize");
+            }
+            job.getPromptParameters().put("ocr_summary", job.getSummary());
+            if (pruning) {
+                // the summary names the kind of document, which the OCR text alone often does not
+                putRelevantContext(job, scanner.getPromptContext(), job.getOcrText() + "\n" + job.getSummary());
+                openSession(job);
+            }
         } catch (Exception e) {
             throw new Exception("Summarization failed: " + e.getMessage(), e);
         }
+    }
 
-        final String filename;
+    /**
+     * The session context contains the directory context, so with context pruning the session is only opened once the
+     * context was selected with the summary, and the summary itself is requested without the session.
+     */
+    private void openSession(DocumentJob job) throws IOException {
+        if (Config.Props.AI_SESSION_ENABLED.getBoolean()) {
+            job.setSession(textCompletion.openSession(trace(job, "summarize", "session context",
+                    ChatUtil.fillTemplateFromClasspath("chat/session-context-01.txt", job.getPromptParameters()))));
+        }
+    }
+
+    private void generateFilename(DocumentJob job) {
+        if (job.getFilename() != null) {
+            job.getConsole().step("Filename generated", job.getFilename() + " (checkpoint)", "");
+            job.getPromptParameters().put("suggested_filename", job.getFilename());
+            return;
+        }
+        if (history != null && applyHistory(job)) {
+            saveCheckpoint(job, "name");
+            return;
+        }
+        if (speculativeExecutor != null) {
+            startSpeculativePath(job);
+        }
         final TimeStats nameTime = new TimeStats();
-        filename = retry(2, "Filename generation failed", () -> {
-            final String prompt = print(ChatUtil.fillTemplateFromClasspath("chat/generate-filename-01.txt", promptParameters));
-            final String completion = print(textCompletion.generateTextCompletion(prompt));
-            final JSONObject completionJson = print(ChatUtil.extractJsonObject(completion));
+        final StepCompletion[] lastCompletion = new StepCompletion[1];
+        final String filename;
+        try {
+            filename = retry(job, "name", 2, "Filename generation failed", () -> {
+                final StepCompletion completion = lastCompletion[0] = complete(job, job.getPromptParameters(), "name", "chat/generate-filename-01.txt", "chat/session-filename-01.txt", true);
+                final JSONObject completionJson = trace(job, "name", "json", ChatUtil.extractJsonObject(completion.text()));
 
-            if (completionJson == null) {
-                throw new RuntimeException("No valid JSON response for filename generation.");
-            }
+                if (completionJson == null) {
+                    forget(job, completion);
+                    throw new RuntimeException("No valid JSON response for filename generation.");
+                }
 
-            final String extracted = DFileCategorization.fromJson(completionJson).getFilename();
-            if (extracted == null) {
-                throw new RuntimeException("No filename found in response JSON.");
+                final String extracted = DFileCategorization.fromJson(completionJson).getFilename();
+                if (extracted == null) {
+                    forget(job, completion);
+                    throw new RuntimeException("No filename found in response JSON.");
+                }
+                return extracted;
+            });
+        } catch (RuntimeException e) {
+            // the path is of no use without a filename
+            if (job.getSpeculativePath() != null) {
+                job.getSpeculativePath().cancel(true);
+                job.setSpeculativePath(null);
             }
-            return extracted;
-        });
-        printStep("Filename generated", filename, nameTime.stopFormatted());
-        promptParameters.put("suggested_filename", filename);
+            throw e;
+        }
+        job.getConsole().step("Filename generated", filename, nameTime.stopFormatted(stageDuration("name")));
+        job.setClassificationNanos(job.getClassificationNanos() + nameTime.stop());
+        printPromptEvaluation(job, lastCompletion[0]);
+        job.setFilename(filename);
+        job.getPromptParameters().put("suggested_filename", filename);
+        saveCheckpoint(job, "name");
+    }
 
-        final String path;
+    private void generatePath(DocumentJob job) {
+        if (job.getPath() != null) {
+            job.getConsole().step("Path generated", job.getPath() + (job.isFromHistory() ? " (history)" : " (checkpoint)"), "");
+            job.setCategorization(new DFileCategorization(job.getPath(), job.getFilename()));
+            saveCheckpoint(job, "place");
+            return;
+        }
         final TimeStats pathTime = new TimeStats();
-        path = retry(2, "Path generation failed", () -> {
-            final String prompt = print(ChatUtil.fillTemplateFromClasspath("chat/suggest-path-01.txt", promptParameters));
-            final String completion = print(textCompletion.generateTextCompletion(prompt));
-            final JSONObject completionJson = print(ChatUtil.extractJsonObject(completion));
+        if (job.getSpeculativePath() != null) {
+            final String speculativePath = awaitSpeculativePath(job);
+            final String conflict = speculativePath == null ? null
+                    : SpeculativePathCheck.fromConfig(Config.Props.AI_SPECULATIVE_PATH_CHECK.get()).findConflict(speculativePath, job.getFilename());
+            if (speculativePath != null && conflict == null) {
+                job.getConsole().step("Path generated", speculativePath + " (speculative)", pathTime.stopFormatted(stageDuration("place")));
+                job.setClassificationNanos(job.getClassificationNanos() + pathTime.stop());
+                job.setPath(speculativePath);
+                job.setCategorization(new DFileCategorization(speculativePath, job.getFilename()));
+                saveCheckpoint(job, "place");
+                return;
+            }
+            if (conflict != null) {
+                job.getConsole().step("Speculative path rejected", conflict, "");
+            }
+        }
+
+        final StepCompletion[] lastCompletion = new StepCompletion[1];
+        final String path = requestPath(job, job.getPromptParameters(), "chat/suggest-path-01.txt", "chat/session-path-01.txt", lastCompletion);
+        job.getConsole().step("Path generated", path, pathTime.stopFormatted(stageDuration("place")));
+        job.setClassificationNanos(job.getClassificationNanos() + pathTime.stop());
+        printPromptEvaluation(job, lastCompletion[0]);
+        job.setPath(path);
+        job.setCategorization(new DFileCategorization(path, job.getFilename()));
+        saveCheckpoint(job, "place");
+    }
+
+    /**
+     * Takes the filename and path from the most similar document in the history, if it is similar enough and the
+     * summary names the date of the document.
+     *
+     * @return whether the model does not need to be asked
+     */
+    private boolean applyHistory(DocumentJob job) {
+        final TimeStats historyTime = new TimeStats();
+        final ClassificationHistory.Match match = history.findMatch(job.getOcrText());
+        final DFileCategorization categorization = match == null ? null
+                : match.apply(ClassificationHistory.findDocumentDate(job.getSummary()), job.getOcrText());
+        historyLookups(categorization != null ? "hit" : "miss").increment();
+        if (categorization == null) {
+            job.getConsole().step("History", match == null ? "no similar document" : "similar document, but no date in summary", historyTime.stopFormatted());
+            return false;
+        }
+
+        trace(job, "name", "history match", match.entry().source() + " -> " + match.entry().path() + "/" + match.entry().filename());
+        historyTimeSaved().add(match.entry().classificationNanos() / 1_000_000_000.0);
+        job.getConsole().step("History match", "%.0f%% like %s, ~%s saved".formatted(match.similarity() * 100,
+                match.entry().source(), TimeStats.formatDuration(match.entry().classificationNanos())), historyTime.stopFormatted());
+        job.getConsole().step("Filename generated", categorization.getFilename() + " (history)", "");
+        job.setFromHistory(true);
+        job.setFilename(categorization.getFilename());
+        job.setPath(categorization.getPath());
+        job.setCategorization(categorization);
+        job.getPromptParameters().put("suggested_filename", categorization.getFilename());
+        return true;
+    }
+
+    private static MetricsRegistry.Counter historyLookups(String result) {
+        return MetricsRegistry.get().counter("adc_history_lookups_total", "Documents compared with the classification history, by result", "result", result);
+    }
+
+    private static MetricsRegistry.Counter historyTimeSaved() {
+        return MetricsRegistry.get().counter("adc_history_time_saved_seconds_total", "Model time the matched documents needed for filename and path");
+    }
+
+    private void printHistoryStats() {
+        if (history == null) {
+            return;
+        }
+        final double hits = historyLookups("hit").get();
+        final double lookups = hits + historyLookups("miss").get();
+        printStep("History", "%.0f of %.0f documents matched (%.0f%%)".formatted(hits, lookups, lookups == 0 ? 0 : hits * 100 / lookups),
+                "~" + TimeStats.formatDuration((long) (historyTimeSaved().get() * 1_000_000_000)) + " saved");
+    }
+
+    /**
+     * Starts generating the path from the summary alone, so that it runs at the same time as the filename generation.
+     * {@link #generatePath(DocumentJob)} then only has to ask the model again if the result conflicts with the filename.
+     */
+    private void startSpeculativePath(DocumentJob job) {
+        // the filename generation adds to the parameters of the job while the speculative request is running
+        final Map<String, String> parameters = Map.copyOf(job.getPromptParameters());
+        // cancelling the future interrupts the request, which aborts the HTTP call and frees the slot on the server
+        job.setSpeculativePath(speculativeExecutor.submit(
+                () -> requestPath(job, parameters, "chat/suggest-path-speculative-01.txt", "chat/session-path-speculative-01.txt", new StepCompletion[1])));
+    }
+
+    private static String awaitSpeculativePath(DocumentJob job) {
+        try {
+            return job.getSpeculativePath().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the speculative path", e);
+        } catch (ExecutionException e) {
+            job.getConsole().line("Speculative path generation failed: " + e.getCause().getMessage());
+            return null;
+        } finally {
+            job.setSpeculativePath(null);
+        }
+    }
+
+    private String requestPath(DocumentJob job, Map<String, String> parameters, String template, String sessionTemplate, StepCompletion[] lastCompletion) {
+        return retry(job, "place", 2, "Path generation failed", () -> {
+            final StepCompletion completion = lastCompletion[0] = complete(job, parameters, "place", template, sessionTemplate, true);
+            final JSONObject completionJson = trace(job, "place", "json", ChatUtil.extractJsonObject(completion.text()));
 
             if (completionJson == null) {
+                forget(job, completion);
                 throw new RuntimeException("No valid JSON response for path generation.");
             }
 
             final String extracted = DFileCategorization.fromJson(completionJson).getPath();
             if (extracted == null) {
+                forget(job, completion);
                 throw new RuntimeException("No path found in response JSON.");
             }
             return extracted;
         });
-        printStep("Path generated", path, pathTime.stopFormatted());
+    }
+
+    /**
+     * Fills the template for a step and sends it to the text model, either as a standalone prompt or, if the job has
+     * a session, as a follow-up to the shared session context.
+     *
+     * @param parameters the values of the placeholders in the templates
+     * @param stage      the stage the step belongs to in the trace log
+     * @param untilJson  whether the step only needs the first JSON object of the response
+     */
+    private StepCompletion complete(DocumentJob job, Map<String, String> parameters, String stage, String template, String sessionTemplate, boolean untilJson) throws IOException {
+        final boolean stream = untilJson && Config.Props.AI_STREAMING_ENABLED.getBoolean();
+        if (job.getSession() != null) {
+            final String prompt = trace(job, stage, "prompt " + sessionTemplate, ChatUtil.fillTemplateFromClasspath(sessionTemplate, parameters));
+            final CompletionClient.SessionCompletion completion = stream ? job.getSession().completeUntilJson(prompt) : job.getSession().complete(prompt);
+            return new StepCompletion(prompt, trace(job, stage, "completion " + sessionTemplate, completion.text()), completion.promptEvalCount(), completion.promptEvalNanos());
+        }
+
+        final String prompt = trace(job, stage, "prompt " + template, ChatUtil.fillTemplateFromClasspath(template, parameters));
+        final String text = stream ? textCompletion.generateTextCompletionUntilJson(prompt) : textCompletion.generateTextCompletion(prompt);
+        return new StepCompletion(prompt, trace(job, stage, "completion " + template, text), -1, -1);
+    }
+
+    private void forget(DocumentJob job, StepCompletion completion) {
+        if (job.getSession() != null) {
+            job.getSession().forget(completion.prompt());
+        } else {
+            textCompletion.forgetTextCompletion(completion.prompt());
+        }
+    }
+
+    private static void printPromptEvaluation(DocumentJob job, StepCompletion completion) {
+        if (job.getSession() == null || completion == null || completion.promptEvalNanos() < 0) {
+            return;
+        }
+        final String tokens = completion.promptEvalCount() < 0 ? "time to first token" : completion.promptEvalCount() + " prompt tokens";
+        job.getConsole().step("  prompt eval", tokens, TimeStats.formatDuration(completion.promptEvalNanos()));
+    }
 
-        return new DFileCategorization(path, filename);
+    private record StepCompletion(String prompt, String text, long promptEvalCount, long promptEvalNanos) {
     }
 
-    private static <T> T print(T t) {
-        if (false) {
-            System.out.println(t);
+    private void move(DocumentJob job) throws IOException {
+        final TimeStats moveTime = new TimeStats();
+        final DFileCategorization finalCategorization = job.getCategorization().cleanFilename().retype(job.getFile().getName());
+        final File targetFile;
+        if (job.getCheckpoint() == null) {
+            targetFile = fileMover.moveFile(job.getFile(), finalCategorization);
         } else {
+            final CheckpointedMover.Move checkpointedMove = checkpointedMover.move(job.getCheckpoint(), job.getFile(), finalCategorization);
+            targetFile = checkpointedMove.target();
+            if (checkpointedMove.earlier()) {
+                job.getConsole().step("Completed earlier move", targetFile.getPath(), "");
+            }
+        }
+        recordMove(targetFile, job.getFingerprint(), finalCategorization, job.getOcrText(), job.getClassificationNanos(),
+                job.isFromHistory(), job.getFile().getName(), job.getConsole()::line);
+        if (job.getCheckpoint() != null) {
+            checkpoints.delete(job.getCheckpoint().getKey());
+        }
+        moveTime.stop(stageDuration("move"));
+        job.getConsole().step("Moved file", finalCategorization.toString(), job.getTime().stopFormatted(stageDuration("document")));
+    }
+
+    /**
+     * Finishes the moves that were interrupted after the file was copied to its target, see {@link CheckpointedMover}.
+     */
+    private void completeInterruptedMoves() throws IOException {
+        for (CheckpointedMover.InterruptedMove move : checkpointedMover.completeInterrupted()) {
+            if (move.target() == null) {
+                printErrorBox("Interrupted move of " + move.source() + " cannot be completed, the file is neither there nor at its target");
+                continue;
+            }
+            final Checkpoint checkpoint = move.checkpoint();
+            final DFileCategorization categorization = new DFileCategorization(checkpoint.getPath(), checkpoint.getFilename())
+                    .cleanFilename().retype(move.source().getName());
+            recordMove(move.target(), duplicateIndex == null ? null : DocumentFingerprint.of(move.target()), categorization,
+                    checkpoint.getOcrText(), checkpoint.getClassificationNanos(), checkpoint.isFromHistory(), move.source().getName(),
+                    DocumentManager::printErrorBox);
+            printStep("Completed interrupted move", move.target().getPath(), "");
+        }
+    }
+
+    /**
+     * Updates the reference tree, the duplicate index and the history for a file that was moved to its target.
+     *
+     * @param fingerprint <code>null</code> if the file is not added to the duplicate index
+     * @param warning     receives problems that do not fail the move
+     */
+    private void recordMove(File targetFile, DocumentFingerprint fingerprint, DFileCategorization categorization, String ocrText,
+                            long classificationNanos, boolean fromHistory, String sourceName, Consumer<String> warning) throws IOException {
+        // keeps the reference tree current in case the files are moved into it
+        scanner.applyChange(targetFile);
+        if (duplicateIndex != null && fingerprint != null) {
+            duplicateIndex.add(targetFile, fingerprint);
+        }
+        if (history != null && !fromHistory && ocrText != null) {
             try {
-                FileUtils.writeStringToFile(new File("automatic-document-classification-log.txt"), t.toString() + "\n---\n", "UTF-8", true);
-            } catch (IOException ignored) {
+                history.record(ocrText, categorization, classificationNanos, sourceName);
+            } catch (IOException e) {
+                warning.accept("Could not add the classification to the history: " + e.getMessage());
             }
         }
-        return t;
+    }
+
+    /**
+     * Continues the document after the last stage it completed in an earlier run, see <code>checkpoint.enabled</code>.
+     */
+    private void restoreCheckpoint(DocumentJob job) throws IOException {
+        final TimeStats restoreTime = new TimeStats();
+        final String key = job.getFingerprint() != null ? job.getFingerprint().sha256() : DocumentFingerprint.sha256(job.getFile());
+        Checkpoint checkpoint = checkpoints.load(key);
+        if (checkpoint == null) {
+            checkpoint = new Checkpoint(key);
+        } else {
+            job.setOcrText(checkpoint.getOcrText());
+            job.setSummary(checkpoint.getSummary());
+            job.setFilename(checkpoint.getFilename());
+            job.setPath(checkpoint.getPath());
+            job.setFromHistory(checkpoint.isFromHistory());
+            job.setClassificationNanos(checkpoint.getClassificationNanos());
+            job.getConsole().step("Resumed from checkpoint", "after stage " + checkpoint.getStage(), restoreTime.stopFormatted());
+        }
+        checkpoint.setSource(job.getFile().getAbsolutePath());
+        job.setCheckpoint(checkpoint);
+    }
+
+    /**
+     * Records the results of the stages the document completed so far.
+     */
+    private void saveCheckpoint(DocumentJob job, String stage) {
+        final Checkpoint checkpoint = job.getCheckpoint();
+        if (checkpoint == null) {
+            return;
+        }
+        checkpoint.setStage(stage);
+        checkpoint.setOcrText(job.getOcrText());
+        checkpoint.setSummary(job.getSummary());
+        checkpoint.setFilename(job.getFilename());
+        checkpoint.setPath(job.getPath());
+        checkpoint.setFromHistory(job.isFromHistory());
+        checkpoint.setClassificationNanos(job.getClassificationNanos());
+        try {
+            checkpoints.save(checkpoint);
+        } catch (IOException e) {
+            job.getConsole().line("Could not write the checkpoint: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the value to the trace log, see <code>trace.file</code>.
+     */
+    private <T> T trace(DocumentJob job, String stage, String kind, T value) {
+        if (traceLog != null) {
+            traceLog.log("#" + job.getId() + " " + job.getFile().getName(), stage, kind, value);
+        }
+        return value;
     }
 
     private static void sleep(long millis) {
@@ -245,37 +917,33 @@ public class DocumentManager {
         }
     }
 
-    private static final int TIME_WIDTH = 7;
-    private static final int ACTION_WIDTH = 20;
-    private static final int DETAILS_WIDTH = 30;
-    private static final int DIVIDER_LINE_LENGTH = 80;
+    private static final ConsoleBlock console = ConsoleBlock.direct();
 
     private static void printStep(String action, String details, String time) {
-        final String timePart = !time.isEmpty() ? String.format("[%" + TIME_WIDTH + "s]", time) : " ".repeat(TIME_WIDTH + 2);
-        final String actionPart = String.format("%-" + ACTION_WIDTH + "s", action + ":");
-        final String detailsPart = String.format("%-" + DETAILS_WIDTH + "s", details);
-
-        System.out.printf("│ %s %s %s%n", timePart, actionPart, detailsPart);
+        console.step(action, details, time);
     }
 
     private static void printErrorBox(String message) {
-        printHorizontalLine("├");
-        System.out.printf("│ ERROR: %s%n", message);
-        printHorizontalLine("└");
+        console.errorBox(message);
     }
 
     private static void printHorizontalLine(String prefix) {
-        System.out.println(prefix + "─".repeat(DIVIDER_LINE_LENGTH - prefix.length() - 1));
+        console.horizontalLine(prefix);
     }
 
-    private static <T> T retry(int times, String failWrapperMessage, ThrowingSupplier<T> supplier) {
+    private static <T> T retry(DocumentJob job, String stage, int times, String failWrapperMessage, ThrowingSupplier<T> supplier) {
         Exception lastException = null;
         for (int i = 0; i < times; i++) {
+            if (i > 0) {
+                MetricsRegistry.get().counter("adc_retries_total", "Model requests that were repeated after an unusable answer", "stage", stage).increment();
+            }
             try {
                 return supplier.get();
             } catch (Exception e) {
-                System.out.println("│ Attempt " + (i + 1) + " of " + times + " failed: " + e.getMessage());
+                job.getConsole().line("Attempt " + (i + 1) + " of " + times + " failed: " + e.getMessage());
                 lastException = e;
+                // the request was cancelled, see startSpeculativePath
+                if (Thread.currentThread().isInterrupted()) break;
             }
         }
         if (lastException == null) {
@@ -13,7 +13,6 @@ import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.Map;
 import java.util.Scanner;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class ChatUtil {
@@ -24,8 +23,7 @@ public class ChatUtil {
     }
 
     public static String fillTemplateFromClasspath(String filePath, Map<String, String> variables) throws IOException {
-        String templateContent = readFile(filePath);
-        return replacePlaceholders(templateContent, variables);
+        return PromptTemplate.fromClasspath(filePath).render(variables);
     }
 
     public static String readFile(File filePath) throws IOException {
@@ -44,115 +42,45 @@ public class ChatUtil {
         }
     }
 
-    private static String replacePlaceholders(String template, Map<String, String> variables) {
+    public static String replacePlaceholders(String template, Map<String, String> variables) {
         // placeholders like [[key]]
-        final Pattern pattern = Pattern.compile("\\[\\[(.*?)]]");
-        final Matcher matcher = pattern.matcher(template);
-        final StringBuffer result = new StringBuffer();
-
-        while (matcher.find()) {
-            final String key = matcher.group(1);
-            final String replacement = variables.getOrDefault(key, "[[" + key + "]]");
-            matcher.appendReplacement(result, Matcher.quoteReplacement(replacement));
-        }
-        matcher.appendTail(result);
-
-        return result.toString();
+        return PromptTemplate.parse(template).render(variables);
     }
 
+    /**
+     * @return the first valid JSON object in the response, see {@link JsonScanner}
+     */
     public static JSONObject extractJsonObject(String response) {
-        Object result = extractJsonStructure(response);
+        Object result = extractJsonStructure(response, true, false);
         return (result instanceof JSONObject) ? (JSONObject) result : null;
     }
 
+    /**
+     * @return the first valid JSON array in the response, see {@link JsonScanner}
+     */
     public static JSONArray extractJsonArray(String response) {
-        Object result = extractJsonStructure(response);
+        Object result = extractJsonStructure(response, false, true);
         return (result instanceof JSONArray) ? (JSONArray) result : null;
     }
 
-    private static Object extractJsonStructure(String response) {
-        // First try structured parsing for both objects and arrays
-        Object result = structuredParse(response);
-        if (result != null) return result;
-
-        // Fallback to regex-based search with proper escaping
-        return regexFallback(response);
-    }
-
-    private static Object structuredParse(String response) {
-        int start = -1;
-        int balance = 0;
-        char expectedClosing = '\0';
-        boolean inString = false;
-
-        for (int i = 0; i < response.length(); i++) {
-            char c = response.charAt(i);
-
-            // Handle string literals
-            if (c == '"' && (i == 0 || response.charAt(i - 1) != '\\')) {
-                inString = !inString;
-                continue;
-            }
-
-            if (!inString) {
-                if (start == -1) {
-                    if (c == '{' || c == '[') {
-                        start = i;
-                        expectedClosing = c == '{' ? '}' : ']';
-                        balance = 1;
-                    }
-                } else {
-                    if (c == expectedClosing) {
-                        balance--;
-                    } else if (c == (expectedClosing == '}' ? '{' : '[')) {
-                        balance++;
-                    }
-
-                    if (balance == 0) {
-                        String candidate = response.substring(start, i + 1);
-                        try {
-                            return parseCandidate(candidate, expectedClosing);
-                        } catch (JSONException ex) {
-                            start = -1;
-                            balance = 0;
-                            expectedClosing = '\0';
-                        }
-                    }
-                }
-            }
+    private static Object extractJsonStructure(String response, boolean objects, boolean arrays) {
+        if (response == null) {
+            return null;
         }
-        return null;
-    }
-
-    private static Object regexFallback(String response) {
-        // Fixed regex pattern with proper character class escaping
-        Pattern pattern = Pattern.compile(
-                "(\\{(?:[^{}\"]|\"(?:[^\"\\\\]|\\\\.)*\")*\\})" +  // Objects
-                        "|" +
-                        "(\\[(?:[^\\[\\]\"]|\"(?:[^\"\\\\]|\\\\.)*\")*\\])", // Arrays
-                Pattern.DOTALL
-        );
-
-        Matcher matcher = pattern.matcher(response);
-        while (matcher.find()) {
-            String candidate = matcher.group();
+        int from = 0;
+        int[] span;
+        while ((span = JsonScanner.find(response, from, objects, arrays)) != null) {
+            String candidate = response.substring(span[0], span[1]);
             try {
-                if (candidate.startsWith("{")) {
-                    return new JSONObject(candidate);
-                } else if (candidate.startsWith("[")) {
-                    return new JSONArray(candidate);
-                }
+                return candidate.charAt(0) == '{' ? new JSONObject(candidate) : new JSONArray(candidate);
             } catch (JSONException ex) {
-                // Continue searching
+                // valid JSON that org.json still rejects, such as duplicate keys
+                from = span[0] + 1;
             }
         }
         return null;
     }
 
-    private static Object parseCandidate(String candidate, char expectedClosing) throws JSONException {
-        return expectedClosing == '}' ? new JSONObject(candidate) : new JSONArray(candidate);
-    }
-
     public static void appendToFile(File file, String content) throws IOException {
         Files.write(file.toPath(), (content + System.lineSeparator()).getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND, StandardOpenOption.CREATE);
     }
@@ -0,0 +1,125 @@
+package de.yanwittmann.document.ai;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Two-tier cache for completion responses: a small in-memory LRU map in front of a directory with one JSON file per
+ * response. Entries expire after a fixed time to live and the directory is kept below a maximum size by removing the
+ * least recently used files first.
+ */
+public class CompletionCache {
+    private final File directory;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final int maxMemoryEntries;
+
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> fileSizes = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    public CompletionCache(File directory, long maxBytes, long ttlMillis, int maxMemoryEntries) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        this.maxMemoryEntries = maxMemoryEntries;
+        FileUtils.forceMkdir(directory);
+
+        final File[] files = directory.listFiles((dir, name) -> name.endsWith(".json"));
+        if (files != null) {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File file : files) {
+                fileSizes.put(file.getName().substring(0, file.getName().length() - ".json".length()), file.length());
+                totalBytes += file.length();
+            }
+        }
+        evictFiles();
+    }
+
+    /**
+     * @return the cached response, or <code>null</code> if there is none or it has expired
+     */
+    public synchronized JSONObject get(String key) {
+        Entry entry = memory.get(key);
+        if (entry == null && fileSizes.containsKey(key)) {
+            try {
+                final JSONObject stored = new JSONObject(FileUtils.readFileToString(entryFile(key), StandardCharsets.UTF_8));
+                entry = new Entry(stored.getLong("created"), stored.getJSONObject("response"));
+                entryFile(key).setLastModified(System.currentTimeMillis());
+                putMemory(key, entry);
+            } catch (IOException | JSONException e) {
+                remove(key);
+                return null;
+            }
+        }
+
+        if (entry == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.created > ttlMillis) {
+            remove(key);
+            return null;
+        }
+        return new JSONObject(entry.response.toString());
+    }
+
+    public synchronized void put(String key, JSONObject response) throws IOException {
+        final Entry entry = new Entry(System.currentTimeMillis(), new JSONObject(response.toString()));
+        putMemory(key, entry);
+
+        final File file = entryFile(key);
+        final File tempFile = new File(directory, key + ".tmp");
+        FileUtils.writeStringToFile(tempFile, new JSONObject()
+                .put("created", entry.created)
+                .put("response", entry.response)
+                .toString(), StandardCharsets.UTF_8);
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        final Long previous = fileSizes.put(key, file.length());
+        totalBytes += file.length() - (previous == null ? 0 : previous);
+        evictFiles();
+    }
+
+    public synchronized void remove(String key) {
+        memory.remove(key);
+        final Long size = fileSizes.remove(key);
+        if (size != null) {
+            totalBytes -= size;
+        }
+        FileUtils.deleteQuietly(entryFile(key));
+    }
+
+    private void putMemory(String key, Entry entry) {
+        memory.put(key, entry);
+        final Iterator<String> iterator = memory.keySet().iterator();
+        while (memory.size() > maxMemoryEntries && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private void evictFiles() {
+        final Iterator<Map.Entry<String, Long>> iterator = fileSizes.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            final Map.Entry<String, Long> eldest = iterator.next();
+            FileUtils.deleteQuietly(entryFile(eldest.getKey()));
+            totalBytes -= eldest.getValue();
+            iterator.remove();
+        }
+    }
+
+    private File entryFile(String key) {
+        return new File(directory, key + ".json");
+    }
+
+    private record Entry(long created, JSONObject response) {
+    }
+}
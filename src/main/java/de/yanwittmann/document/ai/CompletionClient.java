@@ -1,49 +1,125 @@
 package de.yanwittmann.document.ai;
 
+import de.yanwittmann.document.metrics.MetricsRegistry;
 import lombok.Builder;
 import okhttp3.*;
-import org.apache.commons.io.FileUtils;
+import okio.BufferedSource;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Base64;
-import java.util.Collections;
-import java.util.List;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
 
-@Builder
 public class CompletionClient {
     private final String baseUrl;
     private final String model;
+    /**
+     * Optional, responses are only cached if this is set.
+     */
+    private final CompletionCache cache;
     private static final OkHttpClient httpClient;
 
+    private final MetricsRegistry.Counter promptTokens;
+    private final MetricsRegistry.Counter promptSeconds;
+    private final MetricsRegistry.Counter evalTokens;
+    private final MetricsRegistry.Counter evalSeconds;
+
     static {
+        // calls are run by the dispatcher so that the waiting thread can be interrupted, see execute(Call)
+        final Dispatcher dispatcher = new Dispatcher(Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, "completion-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        // the endpoint pool limits the requests per endpoint
+        dispatcher.setMaxRequests(Integer.MAX_VALUE);
+        dispatcher.setMaxRequestsPerHost(Integer.MAX_VALUE);
         httpClient = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
                 .callTimeout(0, java.util.concurrent.TimeUnit.SECONDS)
                 .connectTimeout(0, java.util.concurrent.TimeUnit.SECONDS)
                 .readTimeout(0, java.util.concurrent.TimeUnit.SECONDS)
                 .build();
     }
 
+    @Builder
+    private CompletionClient(String baseUrl, String model, CompletionCache cache) {
+        this.baseUrl = baseUrl;
+        this.model = model;
+        this.cache = cache;
+
+        final MetricsRegistry metrics = MetricsRegistry.get();
+        promptTokens = metrics.counter("adc_model_prompt_tokens_total", "Prompt tokens evaluated by the model", "model", model);
+        promptSeconds = metrics.counter("adc_model_prompt_eval_seconds_total", "Time the model spent evaluating prompts", "model", model);
+        evalTokens = metrics.counter("adc_model_eval_tokens_total", "Tokens generated by the model", "model", model);
+        evalSeconds = metrics.counter("adc_model_eval_seconds_total", "Time the model spent generating tokens", "model", model);
+        metrics.gauge("adc_model_prompt_tokens_per_second", "Average prompt evaluation speed of the model",
+                () -> promptSeconds.get() == 0 ? 0 : promptTokens.get() / promptSeconds.get(), "model", model);
+        metrics.gauge("adc_model_eval_tokens_per_second", "Average generation speed of the model",
+                () -> evalSeconds.get() == 0 ? 0 : evalTokens.get() / evalSeconds.get(), "model", model);
+    }
+
     // Existing text completion methods
     public JSONObject generateJsonCompletion(String prompt, double temperature) throws IOException {
         JSONObject payload = createBasePayload(prompt, temperature);
         payload.put("format", "json");
-        JSONObject responseJson = executeRequest(payload, "/api/generate");
+        JSONObject responseJson = executeRequest(payload, "/api/generate", cacheKey(payload, "/api/generate", Collections.emptyList()));
         return new JSONObject(responseJson.getString("response"));
     }
 
     public String generateTextCompletion(String prompt, double temperature) throws IOException {
         JSONObject payload = createBasePayload(prompt, temperature);
-        JSONObject responseJson = executeRequest(payload, "/api/generate");
+        JSONObject responseJson = executeRequest(payload, "/api/generate", cacheKey(payload, "/api/generate", Collections.emptyList()));
         return responseJson.getString("response");
     }
 
+    /**
+     * Removes the cached response for a text completion, so that the next identical request is sent to the model
+     * again. Used when a cached response turned out to be unusable.
+     */
+    public void forgetTextCompletion(String prompt, double temperature) {
+        if (cache != null) {
+            JSONObject payload = createBasePayload(prompt, temperature);
+            cache.remove(cacheKey(payload, "/api/generate", Collections.emptyList()));
+            cache.remove(cacheKey(payload.put("stream", true), "/api/generate", Collections.emptyList()));
+        }
+    }
+
+    public void forgetTextCompletion(String prompt) {
+        forgetTextCompletion(prompt, 0.6);
+    }
+
     public JSONObject generateJsonCompletion(String prompt) throws IOException {
         return generateJsonCompletion(prompt, 0.6);
     }
 
+    /**
+     * Streams the completion and cancels the request as soon as the first complete JSON object has been generated.
+     * Thinking sections are removed from the result, anything the model would have written after the JSON object is
+     * never generated.
+     *
+     * @return the response up to and including the first JSON object, or the full response if it contains none
+     */
+    public String generateTextCompletionUntilJson(String prompt, double temperature) throws IOException {
+        JSONObject payload = createBasePayload(prompt, temperature);
+        payload.put("stream", true);
+        return streamUntilJson(payload, "/api/generate", chunk -> chunk.optString("response", ""), null).getString("response");
+    }
+
+    public String generateTextCompletionUntilJson(String prompt) throws IOException {
+        return generateTextCompletionUntilJson(prompt, 0.6);
+    }
+
     public String generateTextCompletion(String prompt) throws IOException {
         return generateTextCompletion(prompt, 0.6);
     }
@@ -54,8 +130,8 @@ public class CompletionClient {
     }
 
     public JSONObject generateImageJsonCompletion(String prompt, List<File> imageFiles, double temperature) throws IOException {
-        JSONObject payload = createImagePayload(prompt, imageFiles, temperature);
-        JSONObject responseJson = executeRequest(payload, "/api/chat");
+        ImagePayload imagePayload = createImagePayload(prompt, imageFiles.stream().map(ImageRequestBody.ImageSource::of).toList(), temperature);
+        JSONObject responseJson = executeRequest(imagePayload.body(), "/api/chat", imagePayload.cacheKey());
         String content = responseJson.getJSONObject("message").getString("content");
         return new JSONObject(content);
     }
@@ -65,11 +141,105 @@ public class CompletionClient {
     }
 
     public String generateImageTextCompletion(String prompt, List<File> imageFiles, double temperature) throws IOException {
-        JSONObject payload = createImagePayload(prompt, imageFiles, temperature);
-        JSONObject responseJson = executeRequest(payload, "/api/chat");
+        return completeWithImages(prompt, imageFiles.stream().map(ImageRequestBody.ImageSource::of).toList(), temperature);
+    }
+
+    /**
+     * Same as {@link #generateImageTextCompletion(String, List, double)} for images that are already encoded in memory,
+     * for example pages rendered by the OCR step.
+     */
+    public String generateImageTextCompletion(String prompt, byte[] image, double temperature) throws IOException {
+        return completeWithImages(prompt, List.of(ImageRequestBody.ImageSource.of(image)), temperature);
+    }
+
+    private String completeWithImages(String prompt, List<ImageRequestBody.ImageSource> images, double temperature) throws IOException {
+        ImagePayload imagePayload = createImagePayload(prompt, images, temperature);
+        JSONObject responseJson = executeRequest(imagePayload.body(), "/api/chat", imagePayload.cacheKey());
         return responseJson.getJSONObject("message").getString("content");
     }
 
+    /**
+     * Starts a session in which all completions share the same leading context. The context is sent as a system
+     * message that is identical for every request of the session, followed by the task-specific prompt, which lets
+     * Ollama reuse the already evaluated context instead of processing it again for every step.
+     */
+    public ChatSession openSession(String sharedContext) {
+        return new ChatSession(sharedContext);
+    }
+
+    /**
+     * The requests of a session stay on the endpoint that answered the first of them, which is the one that holds the
+     * evaluated context. They only move to another endpoint if it fails, see {@link EndpointPool}.
+     */
+    public class ChatSession {
+        private final String sharedContext;
+        private volatile String endpoint;
+
+        private ChatSession(String sharedContext) {
+            this.sharedContext = sharedContext;
+        }
+
+        public SessionCompletion complete(String prompt, double temperature) throws IOException {
+            JSONObject payload = createChatPayload(prompt, temperature);
+            JSONObject response = executeRequest(jsonBody(payload), "/api/chat", cacheKey(payload, "/api/chat", Collections.emptyList()), this);
+            return SessionCompletion.fromResponse(response.getJSONObject("message").getString("content"), response);
+        }
+
+        /**
+         * Like {@link #complete(String, double)}, but stops the generation once the first JSON object is complete, see
+         * {@link CompletionClient#generateTextCompletionUntilJson(String, double)}.
+         */
+        public SessionCompletion completeUntilJson(String prompt, double temperature) throws IOException {
+            JSONObject payload = createChatPayload(prompt, temperature);
+            payload.put("stream", true);
+            JSONObject response = streamUntilJson(payload, "/api/chat", chunk -> {
+                JSONObject message = chunk.optJSONObject("message");
+                return message == null ? "" : message.optString("content", "");
+            }, this);
+            return SessionCompletion.fromResponse(response.getString("response"), response);
+        }
+
+        public SessionCompletion complete(String prompt) throws IOException {
+            return complete(prompt, 0.6);
+        }
+
+        public SessionCompletion completeUntilJson(String prompt) throws IOException {
+            return completeUntilJson(prompt, 0.6);
+        }
+
+        public void forget(String prompt) {
+            if (cache != null) {
+                JSONObject payload = createChatPayload(prompt, 0.6);
+                cache.remove(cacheKey(payload, "/api/chat", Collections.emptyList()));
+                cache.remove(cacheKey(payload.put("stream", true), "/api/chat", Collections.emptyList()));
+            }
+        }
+
+        private JSONObject createChatPayload(String prompt, double temperature) {
+            JSONObject payload = new JSONObject();
+            payload.put("model", model);
+            payload.put("stream", false);
+            payload.put("options", new JSONObject().put("temperature", temperature));
+            payload.put("messages", new JSONArray()
+                    .put(new JSONObject().put("role", "system").put("content", sharedContext))
+                    .put(new JSONObject().put("role", "user").put("content", prompt)));
+            return payload;
+        }
+    }
+
+    /**
+     * @param promptEvalCount number of prompt tokens the model had to evaluate, <code>-1</code> if unknown
+     * @param promptEvalNanos time spent evaluating the prompt. For streamed completions that were stopped early this is
+     *                        the time until the first token arrived, which includes the prompt evaluation.
+     */
+    public record SessionCompletion(String text, long promptEvalCount, long promptEvalNanos) {
+        private static SessionCompletion fromResponse(String text, JSONObject response) {
+            return new SessionCompletion(text,
+                    response.optLong("prompt_eval_count", -1),
+                    response.optLong("prompt_eval_duration", response.optLong("first_chunk_duration", -1)));
+        }
+    }
+
     // Payload creation methods
     private JSONObject createBasePayload(String prompt, double temperature) {
         JSONObject payload = new JSONObject();
@@ -80,7 +250,11 @@ public class CompletionClient {
         return payload;
     }
 
-    private JSONObject createImagePayload(String prompt, List<File> imageFiles, double temperature) throws IOException {
+    /**
+     * The images are not part of the JSON payload, they are encoded while the request body is written, see
+     * {@link ImageRequestBody}. For the cache key they are represented by their digests.
+     */
+    private ImagePayload createImagePayload(String prompt, List<ImageRequestBody.ImageSource> images, double temperature) throws IOException {
         JSONObject payload = new JSONObject();
         payload.put("model", model);
         payload.put("stream", false);
@@ -90,39 +264,256 @@ public class CompletionClient {
         JSONObject userMessage = new JSONObject();
         userMessage.put("role", "user");
         userMessage.put("content", prompt);
+        messages.put(userMessage);
+        payload.put("messages", messages);
 
-        JSONArray images = new JSONArray();
-        for (File imageFile : imageFiles) {
-            byte[] imageBytes = FileUtils.readFileToByteArray(imageFile);
-            String base64Image = Base64.getEncoder().encodeToString(imageBytes);
-            images.put(base64Image);
+        String cacheKey = null;
+        if (cache != null) {
+            List<String> imageDigests = new ArrayList<>();
+            for (ImageRequestBody.ImageSource image : images) {
+                imageDigests.add(digest(image));
+            }
+            cacheKey = cacheKey(payload, "/api/chat", imageDigests);
         }
-        userMessage.put("images", images);
 
-        messages.put(userMessage);
-        payload.put("messages", messages);
+        return new ImagePayload(new ImageRequestBody(payload, userMessage, images), cacheKey);
+    }
 
-        return payload;
+    private record ImagePayload(RequestBody body, String cacheKey) {
+    }
+
+    private static String digest(ImageRequestBody.ImageSource image) throws IOException {
+        MessageDigest digest = sha256();
+        try (InputStream in = image.open()) {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private String cacheKey(JSONObject payload, String endpoint, List<String> imageDigests) {
+        if (cache == null) {
+            return null;
+        }
+        final MessageDigest digest = sha256();
+        digest.update((baseUrl + endpoint).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(new TreeMap<>(payload.toMap()).toString().getBytes(StandardCharsets.UTF_8));
+        for (String imageDigest : imageDigests) {
+            digest.update((byte) 0);
+            digest.update(imageDigest.getBytes(StandardCharsets.UTF_8));
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private JSONObject executeRequest(JSONObject payload, String endpoint, String cacheKey) throws IOException {
+        return executeRequest(jsonBody(payload), endpoint, cacheKey);
+    }
+
+    private JSONObject executeRequest(RequestBody body, String endpoint, String cacheKey) throws IOException {
+        return executeRequest(body, endpoint, cacheKey, null);
+    }
+
+    /**
+     * @param session the session the request belongs to, <code>null</code> if it is not part of one
+     */
+    private JSONObject executeRequest(RequestBody body, String endpoint, String cacheKey, ChatSession session) throws IOException {
+        if (cacheKey != null) {
+            final JSONObject cached = cache.get(cacheKey);
+            if (cached != null) {
+                recordCacheHit();
+                return cached;
+            }
+        }
+
+        final JSONObject response = executeRequest(body, endpoint, session);
+        if (cacheKey != null) {
+            store(cacheKey, response);
+        }
+        return response;
+    }
+
+    /**
+     * Streams a completion and cancels the request as soon as the first complete JSON object has been generated.
+     *
+     * @return an object with the thinking-free text in <code>response</code> and the prompt statistics of the model,
+     * if the stream ran until the end
+     */
+    private JSONObject streamUntilJson(JSONObject payload, String endpoint, Function<JSONObject, String> chunkText, ChatSession session) throws IOException {
+        String cacheKey = cacheKey(payload, endpoint, Collections.emptyList());
+        if (cacheKey != null) {
+            JSONObject cached = cache.get(cacheKey);
+            if (cached != null) {
+                recordCacheHit();
+                return cached;
+            }
+        }
+
+        JSONObject result = endpoints().execute(session == null ? null : session.endpoint, url -> {
+            JSONObject streamed = new JSONObject();
+            JsonStreamDetector detector = new JsonStreamDetector();
+            long start = System.nanoTime();
+            long firstChunk = 0;
+            int chunks = 0;
+            Call call = httpClient.newCall(createRequest(jsonBody(payload), url + endpoint));
+            try (Response response = execute(call)) {
+                if (!response.isSuccessful()) {
+                    throw new EndpointPool.ResponseException(response.code(), "Request failed: " + response);
+                }
+                BufferedSource source = response.body().source();
+                String line;
+                while ((line = source.readUtf8Line()) != null) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        throw new InterruptedIOException("Request was cancelled");
+                    }
+                    if (line.isBlank()) continue;
+                    JSONObject chunk = new JSONObject(line);
+                    if (chunk.has("error")) {
+                        throw new IOException("Request failed: " + chunk.getString("error"));
+                    }
+                    if (!streamed.has("first_chunk_duration")) {
+                        firstChunk = System.nanoTime();
+                        streamed.put("first_chunk_duration", firstChunk - start);
+                    }
+                    chunks++;
+                    if (chunk.optBoolean("done", false)) {
+                        for (String key : List.of("prompt_eval_count", "prompt_eval_duration", "eval_count", "eval_duration", "load_duration")) {
+                            if (chunk.has(key)) streamed.put(key, chunk.get(key));
+                        }
+                    }
+                    if (detector.feed(chunkText.apply(chunk)) || chunk.optBoolean("done", false)) {
+                        break;
+                    }
+                }
+            } finally {
+                // stops the generation on the server if the loop ended early
+                call.cancel();
+            }
+            if (streamed.has("eval_count")) {
+                recordStatistics(streamed);
+            } else if (chunks > 0) {
+                // the statistics are only sent at the end, but every chunk of the stream is one generated token
+                recordStatistics(new JSONObject().put("eval_count", chunks).put("eval_duration", System.nanoTime() - firstChunk));
+            }
+            if (session != null) session.endpoint = url;
+            return streamed.put("response", detector.getText());
+        });
+
+        if (cacheKey != null) {
+            store(cacheKey, result);
+        }
+        return result;
+    }
+
+    /**
+     * A response that cannot be cached is still returned, the cache only saves repeated requests.
+     */
+    private void store(String cacheKey, JSONObject response) {
+        try {
+            cache.put(cacheKey, response);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to cache completion: " + e.getMessage());
+        }
     }
 
-    // Updated executeRequest to handle different endpoints
-    private JSONObject executeRequest(JSONObject payload, String endpoint) throws IOException {
-        RequestBody body = RequestBody.create(
+    private static RequestBody jsonBody(JSONObject payload) {
+        return RequestBody.create(
                 payload.toString(),
                 MediaType.get("application/json")
         );
+    }
 
-        Request request = new Request.Builder()
-                .url(baseUrl + endpoint)
+    private Request createRequest(RequestBody body, String url) {
+        return new Request.Builder()
+                .url(url)
                 .post(body)
                 .build();
+    }
+
+    private JSONObject executeRequest(RequestBody body, String endpoint, ChatSession session) throws IOException {
+        return endpoints().execute(session == null ? null : session.endpoint, url -> {
+            try (Response response = execute(httpClient.newCall(createRequest(body, url + endpoint)))) {
+                if (!response.isSuccessful()) {
+                    throw new EndpointPool.ResponseException(response.code(), "Request failed: " + response);
+                }
+                String responseBody = response.body().string();
+                JSONObject json = new JSONObject(responseBody);
+                recordStatistics(json);
+                if (session != null) session.endpoint = url;
+                return json;
+            }
+        });
+    }
+
+    /**
+     * Like {@link Call#execute()}, but cancels the call if the waiting thread is interrupted, so that a request whose
+     * result is no longer needed does not keep the model busy. The interrupt flag stays set.
+     */
+    private static Response execute(Call call) throws IOException {
+        final CompletableFuture<Response> response = new CompletableFuture<>();
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                response.completeExceptionally(e);
+            }
 
-        try (Response response = httpClient.newCall(request).execute()) {
-            if (!response.isSuccessful()) {
-                throw new IOException("Request failed: " + response);
+            @Override
+            public void onResponse(Call call, Response result) {
+                if (!response.complete(result)) result.close();
             }
-            String responseBody = response.body().string();
-            return new JSONObject(responseBody);
+        });
+        try {
+            return response.get();
+        } catch (InterruptedException e) {
+            call.cancel();
+            if (!response.cancel(false)) response.thenAccept(Response::close);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Request was cancelled");
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException cause ? cause : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Adds the token statistics that Ollama reports at the end of a completion to the metrics of the model.
+     */
+    private void recordStatistics(JSONObject response) {
+        final MetricsRegistry metrics = MetricsRegistry.get();
+        metrics.counter("adc_model_requests_total", "Completed model requests", "model", model).increment();
+        // tokens without a duration would distort the tokens per second
+        if (response.has("prompt_eval_count") && response.has("prompt_eval_duration")) {
+            promptTokens.add(response.getLong("prompt_eval_count"));
+            promptSeconds.add(response.getLong("prompt_eval_duration") / 1_000_000_000.0);
         }
+        if (response.has("eval_count") && response.has("eval_duration")) {
+            evalTokens.add(response.getLong("eval_count"));
+            evalSeconds.add(response.getLong("eval_duration") / 1_000_000_000.0);
+        }
+        if (response.has("load_duration")) {
+            metrics.durationHistogram("adc_model_load_duration_seconds", "Time it took to load the model before a request", "model", model)
+                    .observeNanos(response.getLong("load_duration"));
+        }
+    }
+
+    private void recordCacheHit() {
+        MetricsRegistry.get().counter("adc_completion_cache_hits_total", "Requests answered from the completion cache", "model", model).increment();
+    }
+
+    /**
+     * The <code>baseUrl</code> may list several Ollama instances, see {@link EndpointPool}.
+     */
+    private EndpointPool endpoints() {
+        return EndpointPool.forBaseUrls(baseUrl);
     }
 }
@@ -0,0 +1,301 @@
+package de.yanwittmann.document.ai;
+
+import de.yanwittmann.document.metrics.MetricsRegistry;
+import de.yanwittmann.document.model.Config;
+import lombok.Getter;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Distributes requests over several Ollama instances that serve the same models. Each request goes to the healthy
+ * endpoint with the fewest outstanding requests, and waits if all endpoints are at their concurrency limit.
+ * <p>
+ * Endpoints are given as a comma-separated list of base URLs. A limit for a single endpoint can be appended with a
+ * <code>|</code>, for example <code>http://gpu1:11434|4,http://gpu2:11434</code>, otherwise
+ * <code>ai.endpoint.max.concurrent</code> applies.
+ * <p>
+ * An endpoint is taken out of rotation after <code>ai.endpoint.failure.threshold</code> consecutive failed requests
+ * (passive check) and put back once its <code>/api/version</code> answers again, which is checked in the background
+ * every <code>ai.endpoint.health.interval.seconds</code> (active check). A request that fails on one endpoint is
+ * retried on the others, unless the endpoint rejected it as a bad request.
+ * <p>
+ * Requests can prefer an endpoint, which a chat session uses to stay on the instance that already evaluated its
+ * context. They wait for that endpoint while it is healthy and only go elsewhere once it is not.
+ */
+public class EndpointPool {
+    private static final Map<String, EndpointPool> pools = new ConcurrentHashMap<>();
+
+    private static final OkHttpClient healthClient = new OkHttpClient.Builder()
+            .callTimeout(5, TimeUnit.SECONDS)
+            .build();
+
+    private final String baseUrls;
+    @Getter
+    private final List<Endpoint> endpoints;
+    private final int failureThreshold;
+    private final ScheduledExecutorService healthChecker;
+    private final Object lock = new Object();
+
+    /**
+     * @param defaultLimit         concurrent requests per endpoint that has no limit of its own in the list
+     * @param failureThreshold     failed requests in a row after which an endpoint is taken out of rotation
+     * @param healthIntervalMillis delay between two active checks, <code>0</code> to not check
+     */
+    EndpointPool(String baseUrls, int defaultLimit, int failureThreshold, long healthIntervalMillis) {
+        this.baseUrls = baseUrls;
+        final List<Endpoint> endpoints = new ArrayList<>();
+        for (String entry : baseUrls.split(",")) {
+            if (entry.isBlank()) continue;
+            final int separator = entry.indexOf('|');
+            final String url = (separator == -1 ? entry : entry.substring(0, separator)).trim().replaceAll("/+$", "");
+            final int limit = separator == -1 ? defaultLimit : Integer.parseInt(entry.substring(separator + 1).trim());
+            endpoints.add(new Endpoint(url, limit));
+        }
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("No endpoint in base URL list: " + baseUrls);
+        }
+        this.endpoints = List.copyOf(endpoints);
+        this.failureThreshold = Math.max(1, failureThreshold);
+
+        if (this.endpoints.size() > 1 && healthIntervalMillis > 0) {
+            healthChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "endpoint-health");
+                thread.setDaemon(true);
+                return thread;
+            });
+            healthChecker.scheduleWithFixedDelay(this::checkHealth, healthIntervalMillis, healthIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            healthChecker = null;
+        }
+    }
+
+    /**
+     * Pools are shared by all clients with the same base URL list, so that the text and the image model count the
+     * requests of the other towards the limits of an endpoint. The limits and checks are taken from the configuration.
+     */
+    public static EndpointPool forBaseUrls(String baseUrls) {
+        return pools.computeIfAbsent(baseUrls, key -> {
+            final EndpointPool pool = new EndpointPool(key, Config.Props.AI_ENDPOINT_MAX_CONCURRENT.getInt(),
+                    Config.Props.AI_ENDPOINT_FAILURE_THRESHOLD.getInt(), Config.Props.AI_ENDPOINT_HEALTH_INTERVAL_SECONDS.getLong() * 1000);
+            pool.exportMetrics();
+            return pool;
+        });
+    }
+
+    /**
+     * Stops the health check. A shared pool is removed, so that the next {@link #forBaseUrls(String)} creates a new one.
+     */
+    public void close() {
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+        }
+        pools.remove(baseUrls, this);
+    }
+
+    private void exportMetrics() {
+        final MetricsRegistry metrics = MetricsRegistry.get();
+        for (Endpoint endpoint : endpoints) {
+            metrics.gauge("adc_endpoint_outstanding_requests", "Requests that are running on or waiting for an endpoint", endpoint::getOutstanding, "endpoint", endpoint.getUrl());
+            metrics.gauge("adc_endpoint_healthy", "Whether an endpoint is in rotation", () -> endpoint.isHealthy() ? 1 : 0, "endpoint", endpoint.getUrl());
+            metrics.gauge("adc_endpoint_requests", "Requests per endpoint and result since the start", endpoint::getCompleted, "endpoint", endpoint.getUrl(), "result", "completed");
+            metrics.gauge("adc_endpoint_requests", "Requests per endpoint and result since the start", endpoint::getFailed, "endpoint", endpoint.getUrl(), "result", "failed");
+        }
+    }
+
+    /**
+     * Runs the request on the best endpoint and retries it on the other endpoints if it fails. A request the endpoint
+     * rejected with a client error is not retried, the other endpoints would reject it as well.
+     *
+     * @throws IOException the client error, or the failure of the last attempt if the request failed on all endpoints.
+     *                     A request that fails while the thread is interrupted is not retried.
+     */
+    public <T> T execute(EndpointRequest<T> request) throws IOException {
+        return execute(null, request);
+    }
+
+    /**
+     * Like {@link #execute(EndpointRequest)}, but runs the request on the preferred endpoint while it is healthy.
+     *
+     * @param preferredUrl base URL of the preferred endpoint, <code>null</code> to use the best one
+     */
+    public <T> T execute(String preferredUrl, EndpointRequest<T> request) throws IOException {
+        final Endpoint preferred = preferredUrl == null ? null : endpoints.stream()
+                .filter(endpoint -> endpoint.getUrl().equals(preferredUrl))
+                .findFirst().orElse(null);
+        final Set<Endpoint> tried = new HashSet<>();
+        IOException lastFailure = null;
+        while (tried.size() < endpoints.size()) {
+            if (!tried.isEmpty()) {
+                MetricsRegistry.get().counter("adc_endpoint_retries_total", "Requests that were retried on another endpoint").increment();
+            }
+            final Endpoint endpoint = acquire(tried, preferred);
+            tried.add(endpoint);
+            boolean success = false;
+            boolean cancelled = false;
+            try {
+                final T result = request.execute(endpoint.getUrl());
+                success = true;
+                return result;
+            } catch (ResponseException e) {
+                // a request that the endpoint answered in an orderly way does not make it unhealthy
+                success = e.getCode() < 500;
+                if (!e.isRetryable()) throw e;
+                lastFailure = e;
+            } catch (IOException e) {
+                // the caller gave up on the request, which says nothing about the endpoint
+                cancelled = Thread.currentThread().isInterrupted();
+                if (cancelled) throw e;
+                lastFailure = e;
+            } finally {
+                if (cancelled) {
+                    release(endpoint);
+                } else {
+                    release(endpoint, success);
+                }
+            }
+        }
+        throw lastFailure;
+    }
+
+    private Endpoint acquire(Set<Endpoint> excluded, Endpoint preferred) throws IOException {
+        synchronized (lock) {
+            while (true) {
+                Endpoint best = null;
+                boolean anyHealthy = false;
+                if (preferred != null && preferred.healthy && !excluded.contains(preferred)) {
+                    // wait for a slot on the preferred endpoint rather than going to one with fewer requests
+                    anyHealthy = true;
+                    if (preferred.outstanding < preferred.limit) best = preferred;
+                } else {
+                    for (Endpoint endpoint : endpoints) {
+                        if (excluded.contains(endpoint) || !endpoint.healthy) continue;
+                        anyHealthy = true;
+                        if (endpoint.outstanding < endpoint.limit && (best == null || endpoint.outstanding < best.outstanding)) {
+                            best = endpoint;
+                        }
+                    }
+                }
+                if (!anyHealthy) {
+                    // nothing is known to work, try the endpoint that failed longest ago instead of giving up
+                    for (Endpoint endpoint : endpoints) {
+                        if (excluded.contains(endpoint) || endpoint.outstanding >= endpoint.limit) continue;
+                        if (best == null || endpoint.lastFailure < best.lastFailure) {
+                            best = endpoint;
+                        }
+                    }
+                }
+                if (best != null) {
+                    best.outstanding++;
+                    return best;
+                }
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for a free endpoint", e);
+                }
+            }
+        }
+    }
+
+    private void release(Endpoint endpoint) {
+        synchronized (lock) {
+            endpoint.outstanding--;
+            lock.notifyAll();
+        }
+    }
+
+    private void release(Endpoint endpoint, boolean success) {
+        synchronized (lock) {
+            endpoint.outstanding--;
+            if (success) {
+                endpoint.completed++;
+                endpoint.consecutiveFailures = 0;
+                endpoint.healthy = true;
+            } else {
+                endpoint.failed++;
+                endpoint.lastFailure = System.currentTimeMillis();
+                if (++endpoint.consecutiveFailures >= failureThreshold) {
+                    endpoint.healthy = false;
+                }
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private void checkHealth() {
+        for (Endpoint endpoint : endpoints) {
+            boolean reachable;
+            try (Response response = healthClient.newCall(new Request.Builder().url(endpoint.getUrl() + "/api/version").build()).execute()) {
+                reachable = response.isSuccessful();
+            } catch (IOException | RuntimeException e) {
+                reachable = false;
+            }
+            synchronized (lock) {
+                if (reachable != endpoint.healthy) {
+                    endpoint.healthy = reachable;
+                    endpoint.consecutiveFailures = 0;
+                    if (!reachable) endpoint.lastFailure = System.currentTimeMillis();
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    public interface EndpointRequest<T> {
+        T execute(String baseUrl) throws IOException;
+    }
+
+    /**
+     * An endpoint answered with an error status. Errors below 500 do not count against the health of the endpoint.
+     */
+    @Getter
+    public static class ResponseException extends IOException {
+        private final int code;
+
+        public ResponseException(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+
+        /**
+         * @return whether another endpoint may answer differently: server errors, timeouts and rate limits
+         */
+        public boolean isRetryable() {
+            return code >= 500 || code == 408 || code == 429;
+        }
+    }
+
+    /**
+     * The mutable fields are guarded by the lock of the pool, the volatile ones are also read without it.
+     */
+    @Getter
+    public static class Endpoint {
+        private final String url;
+        private final int limit;
+        private volatile int outstanding = 0;
+        private volatile boolean healthy = true;
+        private int consecutiveFailures = 0;
+        private long lastFailure = 0;
+        private volatile long completed = 0;
+        private volatile long failed = 0;
+
+        private Endpoint(String url, int limit) {
+            this.url = url;
+            this.limit = Math.max(1, limit);
+        }
+
+        @Override
+        public String toString() {
+            return url + " (" + outstanding + "/" + limit + (healthy ? "" : ", down") + ")";
+        }
+    }
+}
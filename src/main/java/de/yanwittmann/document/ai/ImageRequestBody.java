@@ -0,0 +1,100 @@
+package de.yanwittmann.document.ai;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import org.json.JSONObject;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Request body of a chat request with images, which Base64-encodes the images directly into the connection while the
+ * request is sent. Neither the Base64 text nor the complete JSON document are ever held in memory, images given as
+ * files are not even read into memory. The body can be written more than once, so that a request can be retried.
+ */
+class ImageRequestBody extends RequestBody {
+    private static final MediaType JSON = MediaType.get("application/json");
+
+    private final String head;
+    private final String tail;
+    private final List<ImageSource> images;
+
+    /**
+     * @param payload the request without images
+     * @param message the message of the payload that the images belong to
+     */
+    ImageRequestBody(JSONObject payload, JSONObject message, List<ImageSource> images) {
+        // the marker is replaced by the image array while writing, the rest of the JSON is serialized as usual
+        final String marker = "images-" + UUID.randomUUID();
+        message.put("images", marker);
+        final String json = payload.toString();
+        message.remove("images");
+
+        final int markerStart = json.indexOf('"' + marker + '"');
+        this.head = json.substring(0, markerStart);
+        this.tail = json.substring(markerStart + marker.length() + 2);
+        this.images = images;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return JSON;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        sink.writeUtf8(head);
+        sink.writeByte('[');
+        for (int i = 0; i < images.size(); i++) {
+            if (i > 0) sink.writeByte(',');
+            sink.writeByte('"');
+            // Base64 has no characters that need to be escaped in a JSON string
+            try (InputStream in = images.get(i).open(); OutputStream base64 = Base64.getEncoder().wrap(new NonClosingOutputStream(sink.outputStream()))) {
+                in.transferTo(base64);
+            }
+            sink.writeByte('"');
+        }
+        sink.writeByte(']');
+        sink.writeUtf8(tail);
+    }
+
+    /**
+     * An image that is either already in memory or read from a file while the request is written.
+     */
+    record ImageSource(File file, byte[] bytes) {
+        static ImageSource of(File file) {
+            return new ImageSource(file, null);
+        }
+
+        static ImageSource of(byte[] bytes) {
+            return new ImageSource(null, bytes);
+        }
+
+        InputStream open() throws IOException {
+            return bytes != null ? new ByteArrayInputStream(bytes) : new BufferedInputStream(Files.newInputStream(file.toPath()));
+        }
+    }
+
+    /**
+     * Closing the Base64 stream writes the padding, but must not close the connection.
+     */
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package de.yanwittmann.document.ai;
+
+import java.util.Arrays;
+
+/**
+ * Finds JSON objects and arrays embedded in free text in a single pass, without creating substrings. A candidate is
+ * validated against the JSON grammar while it is read, with one state machine per nesting level, so every open
+ * container on the stack is a candidate of its own and a violation drops all of them at once.
+ * <p>
+ * A bracket inside of a string of a candidate, like the <code>{</code> in <code>["see {"path": "a"}</code>, starts a
+ * candidate that reads the same characters with strings and structure swapped. A quote ends the string of one of them
+ * and starts a string in the other, and any other character that is only valid in a string drops the one outside of
+ * it. So at any position there is at most one candidate stack outside of a string and one inside, every character is
+ * read by at most two stacks and the scan is linear in the length of the text.
+ * <p>
+ * The result is the same as trying to parse a container at every bracket from left to right: the valid container of an
+ * accepted kind with the leftmost start wins.
+ */
+final class JsonScanner {
+    private static final int OBJECT = 0;
+    private static final int ARRAY = 1;
+
+    // container states
+    private static final int KEY_OR_END = 0;
+    private static final int KEY = 1;
+    private static final int COLON = 2;
+    private static final int VALUE = 3;
+    private static final int VALUE_OR_END = 4;
+    private static final int COMMA_OR_END = 5;
+
+    // scalar states, a scalar can only be open in the innermost container
+    private static final int NO_SCALAR = 0;
+    private static final int STRING = 1;
+    private static final int STRING_ESCAPE = 2;
+    private static final int STRING_UNICODE = 3;
+    private static final int NUMBER = 4;
+    private static final int LITERAL = 5;
+
+    // number states
+    private static final int NUMBER_SIGN = 0;
+    private static final int NUMBER_ZERO = 1;
+    private static final int NUMBER_INT = 2;
+    private static final int NUMBER_DOT = 3;
+    private static final int NUMBER_FRACTION = 4;
+    private static final int NUMBER_EXPONENT = 5;
+    private static final int NUMBER_EXPONENT_SIGN = 6;
+    private static final int NUMBER_EXPONENT_DIGITS = 7;
+
+    private final CharSequence text;
+    private final boolean acceptObjects;
+    private final boolean acceptArrays;
+    private final Candidates[] stacks = {new Candidates(), new Candidates()};
+
+    private int bestStart = -1;
+    private int bestEnd = -1;
+
+    private JsonScanner(CharSequence text, boolean acceptObjects, boolean acceptArrays) {
+        this.text = text;
+        this.acceptObjects = acceptObjects;
+        this.acceptArrays = acceptArrays;
+    }
+
+    /**
+     * @return the start (inclusive) and end (exclusive) of the first valid JSON container of an accepted kind at or
+     * after <code>from</code>, or <code>null</code> if there is none
+     */
+    static int[] find(CharSequence text, int from, boolean acceptObjects, boolean acceptArrays) {
+        return new JsonScanner(text, acceptObjects, acceptArrays).scan(from);
+    }
+
+    private int[] scan(int from) {
+        for (int i = from; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            boolean pushed = false;
+            for (Candidates stack : stacks) {
+                if (stack.depth == 0) continue;
+                final boolean inString = stack.inString();
+                if (!stack.consume(c, i)) {
+                    stack.drop();
+                } else if (!inString && (c == '{' || c == '[')) {
+                    pushed = true;
+                }
+            }
+            if (!pushed && (c == '{' || c == '[')) {
+                // no stack is outside of a string and expects a value here, so the bracket starts a new candidate
+                idle().push(c, i);
+            }
+
+            if (bestStart >= 0 && stacks[0].outermostStart() > bestStart && stacks[1].outermostStart() > bestStart) {
+                // every candidate that could still complete starts after the best one
+                break;
+            }
+        }
+        return bestStart >= 0 ? new int[]{bestStart, bestEnd} : null;
+    }
+
+    private Candidates idle() {
+        for (Candidates stack : stacks) {
+            if (stack.depth == 0) return stack;
+        }
+        throw new IllegalStateException("Two candidate stacks outside of a string");
+    }
+
+    private void completed(int type, int start, int end) {
+        final boolean accepted = type == OBJECT ? acceptObjects : acceptArrays;
+        if (accepted && (bestStart < 0 || start < bestStart)) {
+            bestStart = start;
+            bestEnd = end;
+        }
+    }
+
+    /**
+     * Nested candidates that all read the text in the same way, the outermost one at index <code>0</code>.
+     */
+    private final class Candidates {
+        private int[] types = new int[16];
+        private int[] states = new int[16];
+        private int[] starts = new int[16];
+        private int depth = 0;
+
+        private int scalar = NO_SCALAR;
+        private boolean scalarIsKey;
+        private int unicodeDigits;
+        private String literal;
+        private int literalPosition;
+        private int numberState;
+
+        private boolean inString() {
+            return scalar == STRING || scalar == STRING_ESCAPE || scalar == STRING_UNICODE;
+        }
+
+        private int outermostStart() {
+            return depth == 0 ? Integer.MAX_VALUE : starts[0];
+        }
+
+        private void drop() {
+            depth = 0;
+            scalar = NO_SCALAR;
+        }
+
+        /**
+         * @return <code>false</code> if the character violates the grammar
+         */
+        private boolean consume(char c, int position) {
+            if (scalar != NO_SCALAR && consumeScalar(c)) {
+                return true;
+            }
+            return scalar == NO_SCALAR && consumeStructural(c, position);
+        }
+
+        /**
+         * @return <code>false</code> if the character violates the grammar. A number that ends at the character is
+         * completed and the character is left for {@link #consumeStructural(char, int)}.
+         */
+        private boolean consumeScalar(char c) {
+            switch (scalar) {
+                case STRING -> {
+                    if (c == '"') {
+                        scalar = NO_SCALAR;
+                        states[depth - 1] = scalarIsKey ? COLON : COMMA_OR_END;
+                        return true;
+                    } else if (c == '\\') {
+                        scalar = STRING_ESCAPE;
+                        return true;
+                    }
+                    // org.json does not accept line breaks inside of strings
+                    return c != '\n' && c != '\r' && c != 0;
+                }
+                case STRING_ESCAPE -> {
+                    if (c == 'u') {
+                        scalar = STRING_UNICODE;
+                        unicodeDigits = 0;
+                        return true;
+                    }
+                    scalar = STRING;
+                    return "\"\\/bfnrt".indexOf(c) != -1;
+                }
+                case STRING_UNICODE -> {
+                    if (Character.digit(c, 16) == -1) return false;
+                    if (++unicodeDigits == 4) scalar = STRING;
+                    return true;
+                }
+                case LITERAL -> {
+                    if (c != literal.charAt(literalPosition)) return false;
+                    if (++literalPosition == literal.length()) {
+                        scalar = NO_SCALAR;
+                        states[depth - 1] = COMMA_OR_END;
+                    }
+                    return true;
+                }
+                case NUMBER -> {
+                    final int next = nextNumberState(c);
+                    if (next != -1) {
+                        numberState = next;
+                        return true;
+                    }
+                    if (numberState == NUMBER_ZERO || numberState == NUMBER_INT || numberState == NUMBER_FRACTION || numberState == NUMBER_EXPONENT_DIGITS) {
+                        scalar = NO_SCALAR;
+                        states[depth - 1] = COMMA_OR_END;
+                    }
+                    return false;
+                }
+                default -> throw new IllegalStateException("Unknown scalar state " + scalar);
+            }
+        }
+
+        private int nextNumberState(char c) {
+            final boolean digit = c >= '0' && c <= '9';
+            return switch (numberState) {
+                case NUMBER_SIGN -> c == '0' ? NUMBER_ZERO : digit ? NUMBER_INT : -1;
+                case NUMBER_ZERO -> c == '.' ? NUMBER_DOT : c == 'e' || c == 'E' ? NUMBER_EXPONENT : -1;
+                case NUMBER_INT -> digit ? NUMBER_INT : c == '.' ? NUMBER_DOT : c == 'e' || c == 'E' ? NUMBER_EXPONENT : -1;
+                case NUMBER_DOT -> digit ? NUMBER_FRACTION : -1;
+                case NUMBER_FRACTION -> digit ? NUMBER_FRACTION : c == 'e' || c == 'E' ? NUMBER_EXPONENT : -1;
+                case NUMBER_EXPONENT -> c == '+' || c == '-' ? NUMBER_EXPONENT_SIGN : digit ? NUMBER_EXPONENT_DIGITS : -1;
+                case NUMBER_EXPONENT_SIGN, NUMBER_EXPONENT_DIGITS -> digit ? NUMBER_EXPONENT_DIGITS : -1;
+                default -> -1;
+            };
+        }
+
+        /**
+         * @return <code>false</code> if the character violates the grammar of the innermost container
+         */
+        private boolean consumeStructural(char c, int position) {
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                return true;
+            }
+            final int top = depth - 1;
+            final boolean object = types[top] == OBJECT;
+            switch (states[top]) {
+                case KEY_OR_END, KEY -> {
+                    if (c == '"') {
+                        scalar = STRING;
+                        scalarIsKey = true;
+                        return true;
+                    }
+                    return states[top] == KEY_OR_END && c == '}' && close(position);
+                }
+                case COLON -> {
+                    if (c != ':') return false;
+                    states[top] = VALUE;
+                    return true;
+                }
+                case VALUE, VALUE_OR_END -> {
+                    if (states[top] == VALUE_OR_END && c == ']') {
+                        return close(position);
+                    }
+                    return startValue(c, position);
+                }
+                case COMMA_OR_END -> {
+                    if (c == ',') {
+                        states[top] = object ? KEY : VALUE;
+                        return true;
+                    }
+                    return c == (object ? '}' : ']') && close(position);
+                }
+                default -> throw new IllegalStateException("Unknown container state " + states[top]);
+            }
+        }
+
+        private boolean startValue(char c, int position) {
+            if (c == '"') {
+                scalar = STRING;
+                scalarIsKey = false;
+            } else if (c == '{' || c == '[') {
+                push(c, position);
+            } else if (c == '-' || (c >= '0' && c <= '9')) {
+                scalar = NUMBER;
+                numberState = c == '-' ? NUMBER_SIGN : c == '0' ? NUMBER_ZERO : NUMBER_INT;
+            } else if (c == 't' || c == 'f' || c == 'n') {
+                scalar = LITERAL;
+                literal = c == 't' ? "true" : c == 'f' ? "false" : "null";
+                literalPosition = 1;
+            } else {
+                return false;
+            }
+            return true;
+        }
+
+        private void push(char c, int position) {
+            if (depth == types.length) {
+                types = Arrays.copyOf(types, depth * 2);
+                states = Arrays.copyOf(states, depth * 2);
+                starts = Arrays.copyOf(starts, depth * 2);
+            }
+            types[depth] = c == '{' ? OBJECT : ARRAY;
+            states[depth] = c == '{' ? KEY_OR_END : VALUE_OR_END;
+            starts[depth] = position;
+            depth++;
+        }
+
+        /**
+         * Completes the innermost container, which is a valid candidate no matter what follows.
+         */
+        private boolean close(int position) {
+            depth--;
+            if (depth > 0) {
+                states[depth - 1] = COMMA_OR_END;
+            }
+            completed(types[depth], starts[depth], position + 1);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package de.yanwittmann.document.ai;
+
+/**
+ * Consumes a model response chunk by chunk and detects the moment the first complete JSON object has been received.
+ * Sections enclosed in <code>&lt;think&gt;</code> tags are dropped as they arrive, even if a tag is split across
+ * chunks, so braces inside the reasoning of a model never count.
+ * <p>
+ * A balanced <code>{...}</code> that is not valid JSON (for example prose in braces) is skipped and detection
+ * continues after it.
+ */
+public class JsonStreamDetector {
+    private static final String THINK_OPEN = "<think>";
+    private static final String THINK_CLOSE = "</think>";
+
+    private final StringBuilder text = new StringBuilder();
+    private final StringBuilder tagBuffer = new StringBuilder();
+    private boolean inThinking = false;
+
+    private int objectStart = -1;
+    private int depth = 0;
+    private boolean inString = false;
+    private boolean escaped = false;
+    private int objectEnd = -1;
+
+    /**
+     * @return <code>true</code> once the first complete JSON object has been received, later chunks are ignored
+     */
+    public boolean feed(String chunk) {
+        for (int i = 0; i < chunk.length() && !isComplete(); i++) {
+            acceptTagChar(chunk.charAt(i));
+        }
+        return isComplete();
+    }
+
+    public boolean isComplete() {
+        return objectEnd != -1;
+    }
+
+    /**
+     * @return the response without thinking sections, ending right after the detected JSON object if there is one
+     */
+    public String getText() {
+        return isComplete() ? text.substring(0, objectEnd) : text.toString() + (inThinking ? "" : tagBuffer);
+    }
+
+    private void acceptTagChar(char c) {
+        final String expectedTag = inThinking ? THINK_CLOSE : THINK_OPEN;
+        if (tagBuffer.length() > 0 || c == '<') {
+            tagBuffer.append(c);
+            if (expectedTag.contentEquals(tagBuffer)) {
+                inThinking = !inThinking;
+                tagBuffer.setLength(0);
+            } else if (!expectedTag.startsWith(tagBuffer.toString())) {
+                // not a tag after all, pass the first character on and check the rest again
+                final String buffered = tagBuffer.toString();
+                tagBuffer.setLength(0);
+                acceptVisibleChar(buffered.charAt(0));
+                for (int i = 1; i < buffered.length() && !isComplete(); i++) {
+                    acceptTagChar(buffered.charAt(i));
+                }
+            }
+            return;
+        }
+        acceptVisibleChar(c);
+    }
+
+    private void acceptVisibleChar(char c) {
+        if (inThinking) {
+            return;
+        }
+        text.append(c);
+
+        if (objectStart == -1) {
+            if (c == '{') {
+                objectStart = text.length() - 1;
+                depth = 1;
+            }
+            return;
+        }
+
+        if (inString) {
+            if (escaped) {
+                escaped = false;
+            } else if (c == '\\') {
+                escaped = true;
+            } else if (c == '"') {
+                inString = false;
+            }
+        } else if (c == '"') {
+            inString = true;
+        } else if (c == '{') {
+            depth++;
+        } else if (c == '}' && --depth == 0) {
+            if (ChatUtil.extractJsonObject(text.substring(objectStart)) != null) {
+                objectEnd = text.length();
+            } else {
+                objectStart = -1;
+            }
+        }
+    }
+}
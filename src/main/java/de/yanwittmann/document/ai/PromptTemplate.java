@@ -0,0 +1,165 @@
+package de.yanwittmann.document.ai;
+
+import de.yanwittmann.document.model.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A prompt template parsed into literal text and <code>[[key]]</code> placeholders. Templates from the classpath are
+ * parsed once and cached. If the template exists as a file (in the <code>ai.templates.dir</code> directory or as an
+ * unpacked classpath resource) it is parsed again whenever the file changes.
+ * <p>
+ * Placeholders without a value are left in the text as they are, except in the classpath templates that are checked
+ * with {@link #checkPlaceholders(Collection, Set)}.
+ */
+public class PromptTemplate {
+    private static final Map<String, PromptTemplate> cache = new ConcurrentHashMap<>();
+    private static final Map<String, Set<String>> checkedPlaceholders = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final String[] literals;
+    private final String[] placeholders;
+    private final int literalLength;
+    private final File sourceFile;
+    private final long sourceModified;
+    private final boolean checked;
+
+    /**
+     * @param knownPlaceholders the placeholders the template may use, or <code>null</code> to not check them
+     */
+    private PromptTemplate(String name, String template, File sourceFile, Set<String> knownPlaceholders) {
+        this.name = name;
+        this.sourceFile = sourceFile;
+        this.checked = knownPlaceholders != null;
+        this.sourceModified = sourceFile == null ? 0 : sourceFile.lastModified();
+
+        final List<String> literalList = new ArrayList<>();
+        final List<String> placeholderList = new ArrayList<>();
+        int position = 0;
+        while (true) {
+            final int start = template.indexOf("[[", position);
+            final int end = start == -1 ? -1 : template.indexOf("]]", start + 2);
+            if (end == -1) {
+                literalList.add(template.substring(position));
+                break;
+            }
+            literalList.add(template.substring(position, start));
+            placeholderList.add(template.substring(start + 2, end));
+            position = end + 2;
+        }
+
+        this.literals = literalList.toArray(new String[0]);
+        this.placeholders = placeholderList.toArray(new String[0]);
+        this.literalLength = literalList.stream().mapToInt(String::length).sum();
+
+        if (checked) {
+            final Set<String> unknown = new TreeSet<>(placeholderList);
+            unknown.removeAll(knownPlaceholders);
+            if (!unknown.isEmpty()) {
+                throw new IllegalStateException("Template " + name + " uses unknown placeholders: " + unknown);
+            }
+        }
+    }
+
+    public static PromptTemplate parse(String template) {
+        return new PromptTemplate("<inline>", template, null, null);
+    }
+
+    /**
+     * Loads the classpath templates and fails if one of them uses a placeholder that is not part of the given set. They
+     * are checked again whenever their file changes, and rendering them fails if a placeholder has no value.
+     */
+    public static void checkPlaceholders(Collection<String> paths, Set<String> placeholders) throws IOException {
+        final Set<String> known = Set.copyOf(placeholders);
+        for (String path : paths) {
+            checkedPlaceholders.put(path, known);
+            cache.remove(path);
+            fromClasspath(path);
+        }
+    }
+
+    public static PromptTemplate fromClasspath(String path) throws IOException {
+        final PromptTemplate cached = cache.get(path);
+        if (cached != null && !cached.isOutdated()) {
+            return cached;
+        }
+
+        final File sourceFile = findSourceFile(path);
+        final String content;
+        if (sourceFile != null) {
+            content = Files.readString(sourceFile.toPath(), StandardCharsets.UTF_8);
+        } else {
+            try (InputStream inputStream = PromptTemplate.class.getClassLoader().getResourceAsStream(path)) {
+                if (inputStream == null) {
+                    throw new IOException("Classpath resource not found: " + path);
+                }
+                content = new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+            }
+        }
+
+        final PromptTemplate template = new PromptTemplate(path, content, sourceFile, checkedPlaceholders.get(path));
+        cache.put(path, template);
+        return template;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a placeholder of a checked template has no value
+     */
+    public String render(Map<String, String> variables) {
+        final String[] values = new String[placeholders.length];
+        int length = literalLength;
+        for (int i = 0; i < placeholders.length; i++) {
+            values[i] = variables.get(placeholders[i]);
+            if (values[i] == null) {
+                if (checked) {
+                    throw new IllegalArgumentException("No value for placeholder [[" + placeholders[i] + "]] in template " + name);
+                }
+                values[i] = "[[" + placeholders[i] + "]]";
+            }
+            length += values[i].length();
+        }
+
+        final StringBuilder result = new StringBuilder(length);
+        for (int i = 0; i < placeholders.length; i++) {
+            result.append(literals[i]).append(values[i]);
+        }
+        result.append(literals[placeholders.length]);
+        return result.toString();
+    }
+
+    public Set<String> getPlaceholders() {
+        return new LinkedHashSet<>(Arrays.asList(placeholders));
+    }
+
+    private boolean isOutdated() {
+        return sourceFile != null && sourceFile.lastModified() != sourceModified;
+    }
+
+    private static File findSourceFile(String path) {
+        final String templatesDir = Config.Props.AI_TEMPLATES_DIR.get();
+        if (templatesDir != null && !templatesDir.isBlank()) {
+            final File file = new File(templatesDir, path);
+            if (file.isFile()) {
+                return file;
+            }
+        }
+
+        final URL resource = PromptTemplate.class.getClassLoader().getResource(path);
+        if (resource != null && resource.getProtocol().equals("file")) {
+            try {
+                return new File(resource.toURI());
+            } catch (URISyntaxException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,205 @@
+package de.yanwittmann.document.dir;
+
+import java.util.*;
+
+/**
+ * BM25 index over the directories of the reference tree. Every directory is one document made of its own name, the
+ * names of its parent directories and the content of its <code>.docinfo</code> file, with the own name weighted
+ * highest. The index copies everything it needs, so it stays valid while the tree changes.
+ * <p>
+ * Words are lowercased, umlauts are folded and common German and English plural and inflection endings are removed,
+ * so that <code>Rechnung</code> in a document matches a directory called <code>Rechnungen</code>.
+ */
+class DirectoryIndex {
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final int NAME_WEIGHT = 3;
+    private static final String[] SUFFIXES = {"en", "er", "es", "e", "n", "s"};
+
+    private final String[] paths;
+    private final String[] docfiles;
+    private final int[] parents;
+    private final int[][] children;
+    private final int[] topLevel;
+    private final int[] lengths;
+    private final double averageLength;
+    /**
+     * For every term the directories that contain it, and how often, as alternating directory and count entries.
+     */
+    private final Map<String, int[]> postings;
+
+    private DirectoryIndex(List<DirectoryScanner.DirectoryNode> nodes, Map<DirectoryScanner.DirectoryNode, Integer> ids) {
+        final int size = nodes.size();
+        this.paths = new String[size];
+        this.docfiles = new String[size];
+        this.parents = new int[size];
+        this.children = new int[size][];
+        this.lengths = new int[size];
+
+        final List<Integer> topLevel = new ArrayList<>();
+        final Map<String, List<int[]>> postings = new HashMap<>();
+        long totalLength = 0;
+        for (int id = 0; id < size; id++) {
+            final DirectoryScanner.DirectoryNode node = nodes.get(id);
+            paths[id] = node.path(true);
+            docfiles[id] = node.getDocfileContent();
+            final Integer parent = ids.get(node.getParent());
+            parents[id] = parent == null ? -1 : parent;
+            if (parent == null) topLevel.add(id);
+            children[id] = node.getSubdirectories().values().stream().mapToInt(ids::get).toArray();
+
+            final Map<String, Integer> frequencies = new HashMap<>();
+            for (String term : terms(node.getName())) frequencies.merge(term, NAME_WEIGHT, Integer::sum);
+            for (DirectoryScanner.DirectoryNode ancestor = node.getParent(); ancestor != null && ids.containsKey(ancestor); ancestor = ancestor.getParent()) {
+                for (String term : terms(ancestor.getName())) frequencies.merge(term, 1, Integer::sum);
+            }
+            if (docfiles[id] != null) {
+                for (String term : terms(docfiles[id])) frequencies.merge(term, 1, Integer::sum);
+            }
+            for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+                postings.computeIfAbsent(entry.getKey(), key -> new ArrayList<>()).add(new int[]{id, entry.getValue()});
+                lengths[id] += entry.getValue();
+            }
+            totalLength += lengths[id];
+        }
+
+        this.topLevel = topLevel.stream().mapToInt(Integer::intValue).toArray();
+        this.averageLength = size == 0 ? 0 : (double) totalLength / size;
+        this.postings = new HashMap<>(postings.size() * 2);
+        for (Map.Entry<String, List<int[]>> entry : postings.entrySet()) {
+            final int[] flat = new int[entry.getValue().size() * 2];
+            for (int i = 0; i < entry.getValue().size(); i++) {
+                flat[i * 2] = entry.getValue().get(i)[0];
+                flat[i * 2 + 1] = entry.getValue().get(i)[1];
+            }
+            this.postings.put(entry.getKey(), flat);
+        }
+    }
+
+    /**
+     * Indexes all directories below the root, the root itself is not a candidate. Must be called while the tree
+     * cannot change.
+     */
+    static DirectoryIndex build(DirectoryScanner.DirectoryNode root) {
+        final List<DirectoryScanner.DirectoryNode> nodes = root.collectNodes(node -> node != root);
+        final Map<DirectoryScanner.DirectoryNode, Integer> ids = new IdentityHashMap<>(nodes.size() * 2);
+        for (int i = 0; i < nodes.size(); i++) {
+            ids.put(nodes.get(i), i);
+        }
+        return new DirectoryIndex(nodes, ids);
+    }
+
+    int size() {
+        return paths.length;
+    }
+
+    /**
+     * @return the ids of up to <code>k</code> directories with the highest score for the text, best first. Directories
+     * that share no term with the text are never returned.
+     */
+    int[] rank(String text, int k) {
+        final double[] scores = new double[paths.length];
+        for (String term : new HashSet<>(terms(text))) {
+            final int[] posting = postings.get(term);
+            if (posting == null) continue;
+            final int documentFrequency = posting.length / 2;
+            final double idf = Math.log(1 + (paths.length - documentFrequency + 0.5) / (documentFrequency + 0.5));
+            for (int i = 0; i < posting.length; i += 2) {
+                final int id = posting[i];
+                final int frequency = posting[i + 1];
+                scores[id] += idf * frequency * (K1 + 1) / (frequency + K1 * (1 - B + B * lengths[id] / averageLength));
+            }
+        }
+
+        // partial selection of the best k, the number of directories with a score is usually small
+        final PriorityQueue<Integer> best = new PriorityQueue<>(Comparator.comparingDouble((Integer id) -> scores[id]).thenComparing(id -> -id));
+        for (int id = 0; id < scores.length; id++) {
+            if (scores[id] <= 0) continue;
+            best.add(id);
+            if (best.size() > k) best.poll();
+        }
+        final int[] result = new int[best.size()];
+        for (int i = result.length - 1; i >= 0; i--) {
+            result[i] = best.poll();
+        }
+        return result;
+    }
+
+    String path(int id) {
+        return paths[id];
+    }
+
+    String name(int id) {
+        return paths[id].substring(paths[id].lastIndexOf('/') + 1);
+    }
+
+    String docfile(int id) {
+        return docfiles[id];
+    }
+
+    int parent(int id) {
+        return parents[id];
+    }
+
+    int[] children(int id) {
+        return children[id];
+    }
+
+    int[] topLevel() {
+        return topLevel;
+    }
+
+    static List<String> terms(String text) {
+        final List<String> terms = new ArrayList<>();
+        final StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            final char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                appendFolded(word, Character.toLowerCase(c));
+                continue;
+            }
+            if (word.length() >= 2 && !isLongNumber(word)) {
+                terms.add(stem(word.toString()));
+            }
+            word.setLength(0);
+        }
+        return terms;
+    }
+
+    private static void appendFolded(StringBuilder word, char c) {
+        switch (c) {
+            case 'ä' -> word.append("ae");
+            case 'ö' -> word.append("oe");
+            case 'ü' -> word.append("ue");
+            case 'ß' -> word.append("ss");
+            default -> word.append(c);
+        }
+    }
+
+    /**
+     * Years are useful terms, account and invoice numbers only match by accident.
+     */
+    private static boolean isLongNumber(CharSequence word) {
+        if (word.length() <= 4) return false;
+        for (int i = 0; i < word.length(); i++) {
+            if (!Character.isDigit(word.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    private static String stem(String word) {
+        String stemmed = word;
+        boolean changed = true;
+        while (changed && stemmed.length() > 4) {
+            changed = false;
+            for (String suffix : SUFFIXES) {
+                if (stemmed.endsWith(suffix) && stemmed.length() - suffix.length() >= 4) {
+                    stemmed = stemmed.substring(0, stemmed.length() - suffix.length());
+                    changed = true;
+                    break;
+                }
+            }
+        }
+        return stemmed;
+    }
+}
@@ -9,19 +9,208 @@ import org.json.JSONObject;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class DirectoryScanner {
-    private final DirectoryNode root;
+    private final File rootDir;
+    private DirectoryNode root;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicLong version = new AtomicLong();
+    private Thread watcherThread;
+    private volatile PromptContext promptContext;
+
+    private static final int[] DATE_DIGIT_POSITIONS = {0, 1, 2, 3, 5, 6, 8, 9};
 
     public DirectoryScanner(String rootPath) throws IOException {
-        File rootDir = new File(rootPath);
+        this.rootDir = new File(rootPath);
         this.root = buildDirectoryTree(null, rootDir);
     }
 
+    /**
+     * Incremented whenever the directory structure, the files in it or a <code>.docinfo</code> file changed.
+     */
+    public long getVersion() {
+        return version.get();
+    }
+
+    /**
+     * Updates the tree for a single path that was created, modified or deleted below the root directory, without
+     * walking the rest of the tree. Renames are applied as a deletion of the old and a creation of the new path.
+     * Paths outside the root or inside ignored directories are skipped.
+     */
+    public void applyChange(File changed) throws IOException {
+        final File parentDir = changed.getAbsoluteFile().getParentFile();
+        final String name = changed.getName();
+
+        lock.writeLock().lock();
+        try {
+            final DirectoryNode parent = findNode(parentDir);
+            if (parent == null) {
+                // the parent directory is new as well, add it including its content
+                if (isBelowRoot(parentDir)) {
+                    applyChange(parentDir);
+                }
+                return;
+            }
+            if (new File(parentDir, ".docignore").exists() && !name.equals(".docignore")) {
+                return;
+            }
+
+            // writing to a file that is already listed changes nothing, and keeps the prompt context of this version
+            boolean modified = false;
+            if (name.equals(".docinfo")) {
+                final String content = changed.isFile() ? FileUtils.readFileToString(changed, StandardCharsets.UTF_8) : null;
+                modified = !Objects.equals(content, parent.getDocfileContent());
+                parent.setDocfileContent(content);
+            }
+
+            if (name.equals(".docignore")) {
+                // (un)ignoring a directory changes its whole subtree, which is rebuilt from disk
+                replaceNode(parent, buildDirectoryTree(parent.getParent(), parentDir));
+                modified = true;
+            } else if (changed.isDirectory()) {
+                parent.getFiles().remove(name);
+                parent.getSubdirectories().put(name, buildDirectoryTree(parent, changed));
+                modified = true;
+            } else if (changed.isFile()) {
+                if (!parent.getFiles().contains(name)) {
+                    parent.getFiles().add(name);
+                    modified = true;
+                }
+            } else {
+                modified |= parent.getFiles().remove(name);
+                modified |= parent.getSubdirectories().remove(name) != null;
+            }
+            if (modified) {
+                version.incrementAndGet();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void applyRename(File from, File to) throws IOException {
+        applyChange(from);
+        applyChange(to);
+    }
+
+    /**
+     * Rebuilds the whole tree from disk.
+     */
+    public void rescan() throws IOException {
+        final DirectoryNode rebuilt = buildDirectoryTree(null, rootDir);
+        lock.writeLock().lock();
+        try {
+            root = rebuilt;
+            version.incrementAndGet();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Starts a background thread that applies file system events below the root directory to the tree.
+     */
+    public synchronized void startWatching() throws IOException {
+        if (watcherThread != null) {
+            return;
+        }
+        final WatchService watchService = rootDir.toPath().getFileSystem().newWatchService();
+        final Map<WatchKey, Path> watchedDirectories = new HashMap<>();
+        registerRecursively(watchService, watchedDirectories, rootDir.toPath());
+
+        watcherThread = new Thread(() -> {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    final WatchKey key = watchService.take();
+                    final Path dir = watchedDirectories.get(key);
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        try {
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                                rescan();
+                                continue;
+                            }
+                            final Path changed = dir.resolve((Path) event.context());
+                            if (Files.isDirectory(changed)) {
+                                if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
+                                    // changes inside the directory are reported by its own watch key
+                                    continue;
+                                }
+                                registerRecursively(watchService, watchedDirectories, changed);
+                            }
+                            applyChange(changed.toFile());
+                        } catch (IOException e) {
+                            System.err.println("Failed to apply directory change: " + e.getMessage());
+                        }
+                    }
+                    if (!key.reset()) {
+                        watchedDirectories.remove(key);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ClosedWatchServiceException ignored) {
+            }
+        }, "directory-watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    private static void registerRecursively(WatchService watchService, Map<WatchKey, Path> watchedDirectories, Path start) throws IOException {
+        try (Stream<Path> directories = Files.walk(start)) {
+            for (Path dir : (Iterable<Path>) directories.filter(Files::isDirectory)::iterator) {
+                watchedDirectories.put(dir.register(watchService,
+                        StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE,
+                        StandardWatchEventKinds.ENTRY_MODIFY), dir);
+            }
+        }
+    }
+
+    private boolean isBelowRoot(File file) {
+        final Path rootPath = rootDir.getAbsoluteFile().toPath().normalize();
+        final Path path = file.getAbsoluteFile().toPath().normalize();
+        return path.startsWith(rootPath) && !path.equals(rootPath);
+    }
+
+    private DirectoryNode findNode(File dir) {
+        final Path rootPath = rootDir.getAbsoluteFile().toPath().normalize();
+        final Path path = dir.getAbsoluteFile().toPath().normalize();
+        if (!path.startsWith(rootPath)) {
+            return null;
+        }
+        final Path relative = rootPath.relativize(path);
+
+        DirectoryNode node = root;
+        for (Path part : relative) {
+            if (part.toString().isEmpty()) continue;
+            node = node.getSubdirectories().get(part.toString());
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    private void replaceNode(DirectoryNode oldNode, DirectoryNode newNode) {
+        if (oldNode.getParent() == null) {
+            root = newNode;
+        } else {
+            oldNode.getParent().getSubdirectories().put(oldNode.getName(), newNode);
+        }
+    }
+
     private DirectoryNode buildDirectoryTree(DirectoryNode parent, File dir) throws IOException {
         DirectoryNode node = new DirectoryNode(parent, dir.getName());
         File[] files = dir.listFiles();
@@ -64,10 +253,12 @@ public class DirectoryScanner {
     }
 
     public String getTreeAsString(int maxFilesPerDir) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(root.getName()).append("/\n");
-        buildTreeString(root, "", sb, maxFilesPerDir);
-        return sb.toString();
+        return read(() -> {
+            StringBuilder sb = new StringBuilder();
+            sb.append(root.getName()).append("/\n");
+            buildTreeString(root, "", sb, maxFilesPerDir);
+            return sb.toString();
+        });
     }
 
     private void buildTreeString(DirectoryNode node, String prefix, StringBuilder sb, int maxFilesPerDir) {
@@ -106,6 +297,10 @@ public class DirectoryScanner {
     }
 
     public JSONObject toShortJson() {
+        return read(this::buildShortJson);
+    }
+
+    private JSONObject buildShortJson() {
         final Map<String, List<String>> json = new LinkedHashMap<>();
 
         for (Map.Entry<String, DirectoryNode> entry : root.getSubdirectories().entrySet().stream().sorted(Map.Entry.comparingByKey()).toList()) {
@@ -117,7 +312,7 @@ public class DirectoryScanner {
 
     public JSONObject toJson(int maxFilesPerDir, boolean includeFiles) {
         if (maxFilesPerDir < 0) throw new IllegalArgumentException("maxFilesPerDir must be non-negative");
-        return buildJson(root, maxFilesPerDir, includeFiles);
+        return read(() -> buildJson(root, maxFilesPerDir, includeFiles));
     }
 
     private JSONObject buildJson(DirectoryNode node, int maxFilesPerDir, boolean includeFiles) {
@@ -155,20 +350,93 @@ public class DirectoryScanner {
     }
 
     public Map<String, DirectoryNode> getExampleFiles(int num) {
-        final Map<String, DirectoryNode> allFilenames = new LinkedHashMap<>();
-        root.recursiveAccess(node -> node.getFiles().forEach(file -> allFilenames.put(file, node)));
-        List<Map.Entry<String, DirectoryNode>> entryList = new ArrayList<>(allFilenames.entrySet());
-        Collections.shuffle(entryList);
-        entryList.removeIf(entry -> !entry.getKey().matches("\\d{4}-\\d{2}-\\d{2}.*"));
-        return entryList.stream().limit(num).collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        return read(() -> {
+            // reservoir sampling, only the picked entries are kept in memory
+            final List<Map.Entry<String, DirectoryNode>> reservoir = new ArrayList<>(num);
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            final long[] seen = {0};
+            root.recursiveAccess(node -> {
+                for (String file : node.getFiles()) {
+                    if (!isDatedFilename(file)) continue;
+                    seen[0]++;
+                    if (reservoir.size() < num) {
+                        reservoir.add(Map.entry(file, node));
+                    } else {
+                        final long index = random.nextLong(seen[0]);
+                        if (index < num) {
+                            reservoir.set((int) index, Map.entry(file, node));
+                        }
+                    }
+                }
+            });
+            return reservoir.stream().collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue, (a, b) -> b));
+        });
+    }
+
+    /**
+     * Returns the snapshot of the prompt context for the current version of the tree, building it only if the tree
+     * changed since the last call. The directory index is built from the tree when the context first needs it, which
+     * may already be a newer version than the one of the snapshot.
+     */
+    public PromptContext getPromptContext() {
+        final PromptContext cached = promptContext;
+        if (cached != null && cached.getVersion() == version.get()) {
+            return cached;
+        }
+
+        final PromptContext built = read(() -> {
+            final List<String[]> datedFiles = new ArrayList<>();
+            root.recursiveAccess(node -> {
+                String path = null;
+                for (String file : node.getFiles()) {
+                    if (isDatedFilename(file)) {
+                        if (path == null) path = node.path(true);
+                        datedFiles.add(new String[]{path, file});
+                    }
+                }
+            });
+
+            return new PromptContext(
+                    version.get(),
+                    buildShortJson().toString(1),
+                    root.collectNodes(node -> node.getDocfileContent() != null).stream()
+                            .map(n -> n.path(true) + " --> " + n.getDocfileContent())
+                            .collect(Collectors.joining("\n")),
+                    new JSONArray(root.getSubdirectories().values().stream()
+                            .map(DirectoryNode::getName)
+                            .toList()).toString(),
+                    Collections.unmodifiableList(datedFiles),
+                    () -> read(() -> DirectoryIndex.build(root)));
+        });
+        promptContext = built;
+        return built;
+    }
+
+    private static boolean isDatedFilename(String name) {
+        // same as matching \d{4}-\d{2}-\d{2}.* without compiling a pattern per file
+        if (name.length() < 10 || name.charAt(4) != '-' || name.charAt(7) != '-') return false;
+        for (int i : DATE_DIGIT_POSITIONS) {
+            final char c = name.charAt(i);
+            if (c < '0' || c > '9') return false;
+        }
+        return true;
     }
 
     public List<DirectoryNode> getNodesWithDocfileContent() {
-        return root.collectNodes(node -> node.getDocfileContent() != null);
+        return read(() -> root.collectNodes(node -> node.getDocfileContent() != null));
     }
 
     public List<DirectoryNode> getTopLevelDirectories() {
-        return new ArrayList<>(root.getSubdirectories().values());
+        return read(() -> new ArrayList<>(root.getSubdirectories().values()));
+    }
+
+    private <T> T read(Supplier<T> reader) {
+        lock.readLock().lock();
+        try {
+            return reader.get();
+        } finally {
+            lock.readLock().unlock();
+        }
     }
 
     @Setter
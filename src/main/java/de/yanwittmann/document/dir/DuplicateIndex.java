@@ -0,0 +1,177 @@
+package de.yanwittmann.document.dir;
+
+import de.yanwittmann.document.pdf.DocumentFingerprint;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Fingerprints of all files in the archive directories, so that a new document can be recognized as one that is
+ * already filed before any OCR or model request is made. The index is stored in a JSON file and kept current by
+ * {@link #refresh()}, which only fingerprints files whose size or modification time changed since the last run, and by
+ * {@link #add(File, DocumentFingerprint)} for the files the tool moves itself.
+ */
+public class DuplicateIndex {
+    /**
+     * Number of newly fingerprinted or added files after which the index is saved, so that an interrupted first run
+     * over a large archive does not start over.
+     */
+    private static final int SAVE_INTERVAL = 200;
+
+    private final File stateFile;
+    private final List<File> roots;
+    private final int maxDistance;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private int unsaved = 0;
+
+    /**
+     * @param roots       directories whose files are indexed, <code>null</code> entries are ignored
+     * @param maxDistance share of the dHash in percent in which a near duplicate may differ, negative to only find
+     *                    identical files, see {@link DocumentFingerprint#distance(DocumentFingerprint)}
+     */
+    public DuplicateIndex(File stateFile, List<File> roots, int maxDistance) {
+        this.stateFile = stateFile;
+        this.roots = roots.stream().filter(Objects::nonNull).toList();
+        this.maxDistance = maxDistance;
+        load();
+    }
+
+    /**
+     * Fingerprints files that are new or changed and removes files that are gone.
+     */
+    public synchronized RefreshResult refresh() throws IOException {
+        final Set<String> seen = new HashSet<>();
+        int fingerprinted = 0;
+        for (File root : roots) {
+            if (!root.isDirectory()) continue;
+            final List<Path> files;
+            try (Stream<Path> walk = Files.walk(root.toPath())) {
+                files = walk.filter(Files::isRegularFile).filter(path -> !path.getFileName().toString().startsWith(".")).toList();
+            }
+            for (Path path : files) {
+                final File file = path.toFile().getAbsoluteFile();
+                if (!seen.add(file.getPath())) continue;
+                final Entry entry = entries.get(file.getPath());
+                if (entry != null && entry.size == file.length() && entry.modified == file.lastModified()) continue;
+                try {
+                    entries.put(file.getPath(), new Entry(file.length(), file.lastModified(), DocumentFingerprint.of(file)));
+                } catch (IOException e) {
+                    // deleted or locked while walking the tree, the next refresh tries again
+                    continue;
+                }
+                if (++fingerprinted % SAVE_INTERVAL == 0) save();
+            }
+        }
+        final int before = entries.size();
+        entries.keySet().retainAll(seen);
+        final int removed = before - entries.size();
+        if (fingerprinted > 0 || removed > 0) save();
+        return new RefreshResult(entries.size(), fingerprinted, removed);
+    }
+
+    /**
+     * @param file the file the fingerprint belongs to, which is never reported as its own duplicate
+     * @return the identical file, or else the most similar near duplicate, or <code>null</code>
+     */
+    public synchronized Match find(File file, DocumentFingerprint fingerprint) {
+        final String ownPath = file.getAbsoluteFile().getPath();
+        Match best = null;
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (entry.getKey().equals(ownPath)) continue;
+            final DocumentFingerprint candidate = entry.getValue().fingerprint;
+            if (candidate.sha256().equals(fingerprint.sha256())) {
+                return new Match(new File(entry.getKey()), true, 0);
+            }
+            final int distance = fingerprint.distance(candidate);
+            if (distance <= maxDistance && (best == null || distance < best.distance())) {
+                best = new Match(new File(entry.getKey()), false, distance);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Adds a file that was moved into one of the archive directories, with the fingerprint taken before the move. The
+     * index is only saved every {@value #SAVE_INTERVAL} files and by {@link #flush()}. Files that are lost in a crash
+     * are fingerprinted by the next {@link #refresh()}.
+     */
+    public synchronized void add(File file, DocumentFingerprint fingerprint) throws IOException {
+        final File absolute = file.getAbsoluteFile();
+        entries.put(absolute.getPath(), new Entry(absolute.length(), absolute.lastModified(), fingerprint));
+        if (++unsaved >= SAVE_INTERVAL) save();
+    }
+
+    /**
+     * Saves the files added since the last save.
+     */
+    public synchronized void flush() throws IOException {
+        if (unsaved > 0) save();
+    }
+
+    private void load() {
+        if (!stateFile.exists()) {
+            return;
+        }
+        try {
+            final JSONArray files = new JSONObject(FileUtils.readFileToString(stateFile, StandardCharsets.UTF_8)).getJSONArray("files");
+            for (int i = 0; i < files.length(); i++) {
+                final JSONObject file = files.getJSONObject(i);
+                entries.put(file.getString("path"), new Entry(file.getLong("size"), file.getLong("modified"),
+                        new DocumentFingerprint(file.getString("sha256"), file.getInt("pages"), DocumentFingerprint.parseDHash(file.optString("dhash", null)))));
+            }
+        } catch (IOException | JSONException | IllegalArgumentException e) {
+            // rebuilt by the next refresh
+            entries.clear();
+        }
+    }
+
+    private void save() throws IOException {
+        final JSONArray files = new JSONArray();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            final DocumentFingerprint fingerprint = entry.getValue().fingerprint;
+            files.put(new JSONObject()
+                    .put("path", entry.getKey())
+                    .put("size", entry.getValue().size)
+                    .put("modified", entry.getValue().modified)
+                    .put("sha256", fingerprint.sha256())
+                    .put("pages", fingerprint.pages())
+                    .putOpt("dhash", fingerprint.dHashHex()));
+        }
+
+        // write to a temporary file first, so that a crash never leaves a truncated index behind
+        final File file = stateFile.getAbsoluteFile();
+        FileUtils.forceMkdirParent(file);
+        final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        FileUtils.writeStringToFile(tempFile, new JSONObject().put("files", files).toString(), StandardCharsets.UTF_8);
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        unsaved = 0;
+    }
+
+    private record Entry(long size, long modified, DocumentFingerprint fingerprint) {
+    }
+
+    /**
+     * @param exact    whether the files have the same content, otherwise the first pages look alike
+     * @param distance share of differing dHash bits in percent, <code>0</code> for identical files
+     */
+    public record Match(File file, boolean exact, int distance) {
+    }
+
+    /**
+     * @param files         files in the index
+     * @param fingerprinted files that were new or changed
+     * @param removed       files that no longer exist
+     */
+    public record RefreshResult(int files, int fingerprinted, int removed) {
+    }
+}
@@ -5,7 +5,8 @@ import org.apache.commons.io.FileUtils;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Paths;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 
 public class FileMover {
     private final String rootPath;
@@ -14,16 +15,98 @@ public class FileMover {
         this.rootPath = rootPath;
     }
 
-    public void moveFile(File sourceFile, DFileCategorization location) throws IOException {
+    /**
+     * @return the file the source file was moved to
+     */
+    public File moveFile(File sourceFile, DFileCategorization location) throws IOException {
+        return moveFile(sourceFile, location, targetFile -> {
+        });
+    }
+
+    /**
+     * An existing file is never replaced. If the target is taken, the file gets a number appended to its name, also if
+     * another process creates the target while the file is moved.
+     *
+     * @param intent called with the chosen target file before anything is moved, so that the move can be recorded and
+     *               completed after a crash
+     * @return the file the source file was moved to
+     */
+    public synchronized File moveFile(File sourceFile, DFileCategorization location, MoveIntent intent) throws IOException {
         File targetDir = Paths.get(rootPath, location.getPath()).toFile();
         FileUtils.forceMkdir(targetDir);
 
         File targetFile = new File(targetDir, location.getFilename());
-        if (targetFile.exists()) {
-            targetFile = handleDuplicate(targetFile);
+        while (true) {
+            if (targetFile.exists()) {
+                targetFile = handleDuplicate(targetFile);
+            }
+
+            intent.beforeMove(targetFile);
+            try {
+                move(sourceFile, targetFile);
+                return targetFile;
+            } catch (FileAlreadyExistsException e) {
+                // created since the check above
+            }
+        }
+    }
+
+    /**
+     * Links the target to the file and removes the source, which unlike a rename fails if the target exists. Where that
+     * is not possible, for example across file systems, the file is copied to {@link #partFile(File)} first and moved
+     * to the target once the copy is on disk, so that the target never holds only a part of the file.
+     *
+     * @throws FileAlreadyExistsException if the target exists, the source is left in place
+     */
+    private static void move(File sourceFile, File targetFile) throws IOException {
+        if (link(sourceFile, targetFile)) {
+            Files.delete(sourceFile.toPath());
+            return;
+        }
+        final File partFile = partFile(targetFile);
+        try {
+            Files.copy(sourceFile.toPath(), partFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            try (FileChannel channel = FileChannel.open(partFile.toPath(), StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            if (link(partFile, targetFile)) {
+                Files.delete(partFile.toPath());
+            } else {
+                // without REPLACE_EXISTING this checks the target right before renaming the file in the same directory
+                Files.move(partFile.toPath(), targetFile.toPath());
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(partFile.toPath());
+            throw e;
         }
+        Files.delete(sourceFile.toPath());
+    }
+
+    /**
+     * @return <code>false</code> if the file system cannot link the files, for example because they are on different
+     * file systems
+     * @throws FileAlreadyExistsException if the target exists
+     */
+    private static boolean link(File sourceFile, File targetFile) throws IOException {
+        try {
+            Files.createLink(targetFile.toPath(), sourceFile.toPath());
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            throw e;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the hidden file next to the target a file is copied to before it is renamed to the target
+     */
+    public static File partFile(File targetFile) {
+        return new File(targetFile.getParentFile(), "." + targetFile.getName() + ".part");
+    }
 
-        FileUtils.moveFile(sourceFile, targetFile);
+    public interface MoveIntent {
+        void beforeMove(File targetFile) throws IOException;
     }
 
     private File handleDuplicate(File originalFile) {
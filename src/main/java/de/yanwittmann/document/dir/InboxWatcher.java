@@ -0,0 +1,254 @@
+package de.yanwittmann.document.dir;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Detects new files in an inbox directory via file system events. A file is only handed out once its size and
+ * modification time did not change for a while, so that documents that are still being written by a scanner are not
+ * picked up, and every version of a file is handed out exactly once.
+ * <p>
+ * Files that could not be processed are moved into a quarantine directory and retried from there with an exponential
+ * backoff, until the maximum number of attempts is reached. The attempts are stored in a state file inside the
+ * quarantine directory. Files that were skipped as duplicates are moved into its <code>duplicates</code> subdirectory.
+ */
+public class InboxWatcher {
+    private static final String STATE_FILE = "quarantine.json";
+    private static final String DUPLICATES_DIRECTORY = "duplicates";
+
+    private final Path inbox;
+    private final Path quarantine;
+    private final long stabilityMillis;
+    private final long retryBaseMillis;
+    private final int maxAttempts;
+
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<>();
+    private final Map<Path, Candidate> candidates = new LinkedHashMap<>();
+    /**
+     * The size and modification time each file was handed out with, until it leaves the inbox.
+     */
+    private final Map<Path, String> handedOut = new HashMap<>();
+    private final Set<String> retrying = new HashSet<>();
+    private final JSONObject quarantineState;
+
+    public InboxWatcher(File inbox, File quarantine, long stabilityMillis, long retryBaseMillis, int maxAttempts) throws IOException {
+        this.inbox = inbox.getAbsoluteFile().toPath().normalize();
+        this.quarantine = quarantine.getAbsoluteFile().toPath().normalize();
+        this.stabilityMillis = stabilityMillis;
+        this.retryBaseMillis = retryBaseMillis;
+        this.maxAttempts = maxAttempts;
+
+        Files.createDirectories(this.quarantine);
+        final File stateFile = this.quarantine.resolve(STATE_FILE).toFile();
+        this.quarantineState = stateFile.exists()
+                ? new JSONObject(FileUtils.readFileToString(stateFile, StandardCharsets.UTF_8))
+                : new JSONObject();
+
+        this.watchService = this.inbox.getFileSystem().newWatchService();
+        register(this.inbox);
+    }
+
+    /**
+     * Blocks until at least one file is ready to be processed.
+     *
+     * @return new files that are stable, and quarantined files whose retry is due
+     */
+    public List<File> awaitReadyFiles() throws IOException, InterruptedException {
+        while (true) {
+            final List<File> ready = new ArrayList<>();
+            ready.addAll(collectStableFiles());
+            ready.addAll(collectDueRetries());
+            if (!ready.isEmpty()) {
+                return ready;
+            }
+
+            final WatchKey key = watchService.poll(Math.max(100, stabilityMillis / 2), TimeUnit.MILLISECONDS);
+            if (key != null) {
+                handleEvents(key);
+            }
+        }
+    }
+
+    /**
+     * Removes all retry information of a file that was processed successfully.
+     */
+    public synchronized void markDone(File file) throws IOException {
+        retrying.remove(file.getName());
+        if (file.getAbsoluteFile().toPath().normalize().startsWith(quarantine) && quarantineState.remove(file.getName()) != null) {
+            saveState();
+        }
+    }
+
+    /**
+     * Moves a file that was skipped as a duplicate out of the inbox, so that it does not stay there unprocessed.
+     *
+     * @return where the file was moved to
+     */
+    public synchronized File setAsideDuplicate(File file) throws IOException {
+        final Path target = uniqueTarget(quarantine.resolve(DUPLICATES_DIRECTORY).resolve(file.getName()));
+        Files.createDirectories(target.getParent());
+        move(file.toPath(), target);
+        markDone(file);
+        return target.toFile();
+    }
+
+    /**
+     * Moves a file that failed to process into the quarantine directory and schedules its next attempt.
+     *
+     * @return <code>true</code> if the file will be retried, <code>false</code> if it has used up all attempts
+     */
+    public synchronized boolean quarantine(File file, Throwable failure) throws IOException {
+        Path target = file.getAbsoluteFile().toPath().normalize();
+        if (!target.startsWith(quarantine)) {
+            target = uniqueTarget(quarantine.resolve(file.getName()));
+            Files.createDirectories(quarantine);
+            move(file.toPath(), target);
+        }
+
+        final String name = target.getFileName().toString();
+        retrying.remove(name);
+        final JSONObject previous = quarantineState.optJSONObject(name);
+        final int attempts = (previous == null ? 0 : previous.optInt("attempts", 0)) + 1;
+        final long backoff = retryBaseMillis * (1L << Math.min(attempts - 1, 20));
+        quarantineState.put(name, new JSONObject()
+                .put("attempts", attempts)
+                .put("nextRetry", System.currentTimeMillis() + backoff)
+                .put("error", String.valueOf(failure.getMessage())));
+        saveState();
+        return attempts < maxAttempts;
+    }
+
+    private List<File> collectStableFiles() throws IOException {
+        final List<File> ready = new ArrayList<>();
+        final long now = System.currentTimeMillis();
+
+        final Iterator<Map.Entry<Path, Candidate>> iterator = candidates.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Path, Candidate> entry = iterator.next();
+            final Path path = entry.getKey();
+            if (!Files.isRegularFile(path)) {
+                iterator.remove();
+                continue;
+            }
+
+            final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            final Candidate candidate = entry.getValue();
+            final long size = attributes.size();
+            final long modified = attributes.lastModifiedTime().toMillis();
+            if (size != candidate.size || modified != candidate.modified) {
+                entry.setValue(new Candidate(size, modified, now));
+            } else if (now - candidate.stableSince >= stabilityMillis) {
+                iterator.remove();
+                final String version = size + "|" + modified;
+                if (!version.equals(handedOut.put(path, version))) {
+                    ready.add(path.toFile());
+                }
+            }
+        }
+        return ready;
+    }
+
+    private synchronized List<File> collectDueRetries() {
+        final List<File> ready = new ArrayList<>();
+        final long now = System.currentTimeMillis();
+        for (String name : quarantineState.keySet()) {
+            final JSONObject entry = quarantineState.getJSONObject(name);
+            final File file = quarantine.resolve(name).toFile();
+            if (entry.getInt("attempts") < maxAttempts && entry.getLong("nextRetry") <= now && file.isFile() && retrying.add(name)) {
+                ready.add(file);
+            }
+        }
+        return ready;
+    }
+
+    private void handleEvents(WatchKey key) throws IOException {
+        final Path dir = watchedDirectories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                // deletions may have been missed as well
+                handedOut.keySet().removeIf(path -> !Files.exists(path));
+                register(inbox);
+                continue;
+            }
+            final Path changed = dir.resolve((Path) event.context());
+            if (changed.startsWith(quarantine)) {
+                continue;
+            }
+            if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                // the file, or a directory with files, left the inbox
+                handedOut.keySet().removeIf(path -> path.startsWith(changed));
+            } else if (Files.isDirectory(changed)) {
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    register(changed);
+                }
+            } else {
+                addCandidate(changed);
+            }
+        }
+        if (!key.reset()) {
+            watchedDirectories.remove(key);
+        }
+    }
+
+    /**
+     * Watches the directory and its subdirectories and adds the files that are already present as candidates.
+     */
+    private void register(Path start) throws IOException {
+        try (Stream<Path> paths = Files.walk(start)) {
+            for (Path path : (Iterable<Path>) paths.filter(p -> !p.startsWith(quarantine))::iterator) {
+                if (Files.isDirectory(path)) {
+                    watchedDirectories.put(path.register(watchService,
+                            StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY,
+                            StandardWatchEventKinds.ENTRY_DELETE), path);
+                } else {
+                    addCandidate(path);
+                }
+            }
+        }
+    }
+
+    private void addCandidate(Path path) {
+        // the first stat happens on the next check, so every file is observed for at least one stability period
+        candidates.putIfAbsent(path, new Candidate(-1, -1, System.currentTimeMillis()));
+    }
+
+    /**
+     * Renames the file, or copies it if the quarantine directory is on another file system.
+     */
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target);
+        }
+    }
+
+    private Path uniqueTarget(Path target) {
+        final String name = target.getFileName().toString();
+        final String baseName = name.replaceFirst("[.][^.]+$", "");
+        final String extension = name.substring(baseName.length());
+        int counter = 1;
+        while (Files.exists(target) || quarantineState.has(target.getFileName().toString())) {
+            target = target.resolveSibling(baseName + "_" + counter++ + extension);
+        }
+        return target;
+    }
+
+    private void saveState() throws IOException {
+        FileUtils.writeStringToFile(quarantine.resolve(STATE_FILE).toFile(), quarantineState.toString(2), StandardCharsets.UTF_8);
+    }
+
+    private record Candidate(long size, long modified, long stableSince) {
+    }
+}
@@ -0,0 +1,143 @@
+package de.yanwittmann.document.dir;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * Immutable snapshot of the parts of the directory tree that go into every prompt. It is built once per version of the
+ * {@link DirectoryScanner} tree, so documents that are processed while the tree does not change share the same strings.
+ * The index for {@link #selectRelevant(String, int)} is only built when it is first needed.
+ */
+@Getter
+public class PromptContext {
+    private final long version;
+    private final String directoryStructure;
+    private final String docfiles;
+    private final String topLevelDirectories;
+    /**
+     * All files whose name starts with a date, as <code>[path, filename]</code> pairs.
+     */
+    private final List<String[]> datedFiles;
+    @Getter(AccessLevel.NONE)
+    private final Supplier<DirectoryIndex> indexBuilder;
+    @Getter(AccessLevel.NONE)
+    private DirectoryIndex index;
+
+    PromptContext(long version, String directoryStructure, String docfiles, String topLevelDirectories, List<String[]> datedFiles, Supplier<DirectoryIndex> indexBuilder) {
+        this.version = version;
+        this.directoryStructure = directoryStructure;
+        this.docfiles = docfiles;
+        this.topLevelDirectories = topLevelDirectories;
+        this.datedFiles = datedFiles;
+        this.indexBuilder = indexBuilder;
+    }
+
+    private synchronized DirectoryIndex index() {
+        if (index == null) {
+            index = indexBuilder.get();
+        }
+        return index;
+    }
+
+    /**
+     * Reduces the directory structure and the <code>.docinfo</code> contents to the parts that are relevant for a
+     * document: all top-level directories, and the branches leading to the <code>topK</code> directories that match
+     * the text best, including the direct subdirectories of these. The result does not grow with the size of the
+     * archive. If no directory matches the text at all, the full context is returned.
+     *
+     * @param text OCR text and, once known, the summary of the document
+     */
+    public RelevantContext selectRelevant(String text, int topK) {
+        final DirectoryIndex index = index();
+        final int[] hits = index.rank(text, topK);
+        if (hits.length == 0) {
+            return new RelevantContext(directoryStructure, docfiles, index.size(), index.size());
+        }
+
+        final boolean[] shown = new boolean[index.size()];
+        for (int hit : hits) {
+            for (int id = hit; id != -1 && !shown[id]; id = index.parent(id)) {
+                shown[id] = true;
+            }
+            for (int child : index.children(hit)) {
+                shown[child] = true;
+            }
+        }
+        for (int id : index.topLevel()) {
+            shown[id] = true;
+        }
+
+        final JSONObject structure = new JSONObject();
+        for (int id : index.topLevel()) {
+            structure.put(index.name(id), shownSubdirectories(index, id, shown));
+        }
+        final StringBuilder relevantDocfiles = new StringBuilder();
+        int directories = 0;
+        for (int id = 0; id < shown.length; id++) {
+            if (!shown[id]) continue;
+            directories++;
+            if (index.docfile(id) != null) {
+                if (relevantDocfiles.length() > 0) relevantDocfiles.append('\n');
+                relevantDocfiles.append(index.path(id)).append(" --> ").append(index.docfile(id));
+            }
+        }
+        return new RelevantContext(structure.toString(1), relevantDocfiles.toString(), directories, index.size());
+    }
+
+    private JSONObject shownSubdirectories(DirectoryIndex index, int id, boolean[] shown) {
+        final JSONObject subdirectories = new JSONObject();
+        for (int child : index.children(id)) {
+            if (shown[child]) {
+                subdirectories.put(index.name(child), shownSubdirectories(index, child, shown));
+            }
+        }
+        return subdirectories;
+    }
+
+    /**
+     * @param directories      number of directories in the selected context
+     * @param totalDirectories number of directories in the reference tree
+     */
+    public record RelevantContext(String directoryStructure, String docfiles, int directories, int totalDirectories) {
+    }
+
+    /**
+     * Picks distinct random files from the dated files without copying or shuffling the index.
+     *
+     * @return a JSON array of objects with the keys <code>path</code> and <code>filename</code>
+     */
+    public String sampleExampleFilenames(int num) {
+        final int count = Math.min(num, datedFiles.size());
+        final int[] picked = new int[count];
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        final JSONArray exampleFiles = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            int candidate;
+            do {
+                candidate = random.nextInt(datedFiles.size());
+            } while (contains(picked, i, candidate));
+            picked[i] = candidate;
+
+            final String[] entry = datedFiles.get(candidate);
+            exampleFiles.put(new JSONObject()
+                    .put("path", entry[0])
+                    .put("filename", entry[1])
+            );
+        }
+        return exampleFiles.toString(1);
+    }
+
+    private static boolean contains(int[] values, int length, int value) {
+        for (int i = 0; i < length; i++) {
+            if (values[i] == value) return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,207 @@
+package de.yanwittmann.document.history;
+
+import de.yanwittmann.document.model.DFileCategorization;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Journal of past classifications that lets recurring documents (the monthly bill, the yearly statement of the same
+ * insurer) skip the filename and path generation. Every classification made by the model is appended to a JSON lines
+ * file together with a {@link MinHash} signature of the OCR text. A new document whose signature is similar enough to
+ * one in the journal gets the path and filename of that document, with the date taken from its own summary.
+ * <p>
+ * Only the newest <code>maxEntries</code> entries are loaded and searched. The search compares the signature with
+ * every entry, which takes well below a millisecond for a few thousand entries. Once the file holds more than
+ * {@value #COMPACT_FACTOR} times as many lines, it is rewritten with only the loaded entries.
+ */
+public class ClassificationHistory {
+    private static final Pattern DOCUMENT_DATE = Pattern.compile("Document date:\\W*(\\d{4}-\\d{2}-\\d{2})");
+    private static final Pattern LEADING_DATE = Pattern.compile("^(\\d{4})-\\d{2}-\\d{2}\\s*");
+    private static final int COMPACT_FACTOR = 2;
+
+    private final File file;
+    private final double threshold;
+    private final int maxEntries;
+    private final Deque<Entry> entries = new ArrayDeque<>();
+    /**
+     * Lines in the file, including the ones of entries that are no longer loaded.
+     */
+    private int lines = 0;
+
+    public ClassificationHistory(File file, double threshold, int maxEntries) throws IOException {
+        this.file = file;
+        this.threshold = threshold;
+        this.maxEntries = Math.max(1, maxEntries);
+        if (file.exists()) {
+            for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                if (line.isBlank()) continue;
+                lines++;
+                try {
+                    add(Entry.fromJson(new JSONObject(line)));
+                } catch (JSONException | IllegalArgumentException e) {
+                    // a line that was cut off when the process was killed
+                }
+            }
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * @return the most similar past classification if it reaches the threshold, otherwise <code>null</code>
+     */
+    public synchronized Match findMatch(String ocrText) {
+        final int[] signature = MinHash.signature(ocrText);
+        if (signature == null) {
+            return null;
+        }
+        Entry best = null;
+        double bestSimilarity = 0;
+        // newest first, so that the latest classification wins among equally similar ones
+        for (Entry entry : entries) {
+            final double similarity = MinHash.similarity(signature, entry.signature);
+            if (similarity > bestSimilarity) {
+                best = entry;
+                bestSimilarity = similarity;
+            }
+        }
+        return best != null && bestSimilarity >= threshold ? new Match(best, bestSimilarity) : null;
+    }
+
+    /**
+     * Appends a classification of the model to the journal.
+     *
+     * @param classificationNanos time the model needed for the filename and the path, which a match saves
+     */
+    public synchronized void record(String ocrText, DFileCategorization categorization, long classificationNanos, String source) throws IOException {
+        final int[] signature = MinHash.signature(ocrText);
+        if (signature == null) {
+            return;
+        }
+        final Entry entry = new Entry(System.currentTimeMillis(), signature, categorization.getPath(), categorization.getFilename(), classificationNanos, source);
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null) Files.createDirectories(parent.toPath());
+        Files.writeString(file.toPath(), entry.toJson().toString() + "\n", StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        lines++;
+        add(entry);
+        compactIfNeeded();
+    }
+
+    /**
+     * Rewrites the file with the loaded entries, oldest first. The new content is written to a temporary file first, so
+     * that a crash leaves either the old or the compacted journal behind.
+     */
+    private void compactIfNeeded() throws IOException {
+        if (lines <= (long) maxEntries * COMPACT_FACTOR) {
+            return;
+        }
+        final StringBuilder content = new StringBuilder();
+        for (Iterator<Entry> it = entries.descendingIterator(); it.hasNext(); ) {
+            content.append(it.next().toJson()).append('\n');
+        }
+        final File absolute = file.getAbsoluteFile();
+        final File tempFile = new File(absolute.getParentFile(), absolute.getName() + ".tmp");
+        Files.writeString(tempFile.toPath(), content, StandardCharsets.UTF_8);
+        Files.move(tempFile.toPath(), absolute.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        lines = entries.size();
+    }
+
+    private void add(Entry entry) {
+        entries.addFirst(entry);
+        if (entries.size() > maxEntries) {
+            entries.removeLast();
+        }
+    }
+
+    /**
+     * @return the date of the last <code>Document date: YYYY-MM-DD</code> line of a summary, or <code>null</code>
+     */
+    public static String findDocumentDate(String summary) {
+        final Matcher matcher = DOCUMENT_DATE.matcher(summary);
+        String date = null;
+        while (matcher.find()) {
+            date = matcher.group(1);
+        }
+        return date;
+    }
+
+    public record Match(Entry entry, double similarity) {
+        /**
+         * Applies the classification of the past document to a new one. The date the past filename starts with is
+         * replaced by the date of the new document, and so is the year in a path directory named after that year.
+         * Words of the past filename that contain digits, such as amounts or invoice numbers, are only kept if they
+         * also appear in the OCR text of the new document.
+         *
+         * @param date the date of the new document, <code>YYYY-MM-DD</code>
+         * @return the classification, or <code>null</code> if the past filename has a date but the new document has
+         * none
+         */
+        public DFileCategorization apply(String date, String ocrText) {
+            String name = entry.filename;
+            if (name.lastIndexOf('.') > 0) {
+                name = name.substring(0, name.lastIndexOf('.'));
+            }
+            final Matcher leadingDate = LEADING_DATE.matcher(name);
+            final boolean dated = leadingDate.find();
+            if (dated && date == null) {
+                return null;
+            }
+
+            final List<String> words = new ArrayList<>();
+            for (String word : (dated ? name.substring(leadingDate.end()) : name).split(" ")) {
+                if (word.isEmpty() || word.chars().anyMatch(Character::isDigit) && !ocrText.contains(word)) continue;
+                words.add(word);
+            }
+            final String filename = (dated ? date + " " : "") + String.join(" ", words);
+
+            String path = entry.path;
+            if (dated && path != null) {
+                final String oldYear = leadingDate.group(1);
+                final List<String> segments = new ArrayList<>();
+                for (String segment : path.split("/", -1)) {
+                    segments.add(segment.equals(oldYear) ? date.substring(0, 4) : segment);
+                }
+                path = String.join("/", segments);
+            }
+            return new DFileCategorization(path, filename.trim());
+        }
+    }
+
+    /**
+     * @param time when the model made the classification, <code>0</code> if unknown
+     */
+    public record Entry(long time, int[] signature, String path, String filename, long classificationNanos, String source) {
+        private JSONObject toJson() {
+            final ByteBuffer bytes = ByteBuffer.allocate(signature.length * 4);
+            bytes.asIntBuffer().put(signature);
+            return new JSONObject()
+                    .put("time", time)
+                    .put("source", source)
+                    .put("path", path)
+                    .put("filename", filename)
+                    .put("classificationNanos", classificationNanos)
+                    .put("signature", Base64.getEncoder().encodeToString(bytes.array()));
+        }
+
+        private static Entry fromJson(JSONObject json) {
+            final ByteBuffer bytes = ByteBuffer.wrap(Base64.getDecoder().decode(json.getString("signature")));
+            final int[] signature = new int[MinHash.SIZE];
+            if (bytes.remaining() != signature.length * 4) {
+                throw new IllegalArgumentException("Signature of unexpected length");
+            }
+            bytes.asIntBuffer().get(signature);
+            return new Entry(json.optLong("time", 0), signature, json.optString("path", ""), json.getString("filename"),
+                    json.optLong("classificationNanos", 0), json.optString("source", null));
+        }
+    }
+}
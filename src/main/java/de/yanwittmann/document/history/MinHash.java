@@ -0,0 +1,80 @@
+package de.yanwittmann.document.history;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * MinHash signatures of texts, whose share of equal positions estimates the Jaccard similarity of the word shingles of
+ * the texts. Digits are all mapped to <code>0</code> before shingling, so that monthly documents of the same kind,
+ * which only differ in dates and amounts, come out as near duplicates.
+ */
+final class MinHash {
+    static final int SIZE = 128;
+    private static final int SHINGLE_WORDS = 3;
+    /**
+     * Texts with fewer words do not have enough shingles for a meaningful estimate.
+     */
+    private static final int MIN_WORDS = 20;
+    private static final long[] SEEDS = new SplittableRandom(0x5DEECE66DL).longs(SIZE).toArray();
+
+    private MinHash() {
+    }
+
+    /**
+     * @return the signature, or <code>null</code> if the text is too short
+     */
+    static int[] signature(String text) {
+        final List<String> words = words(text);
+        if (words.size() < MIN_WORDS) {
+            return null;
+        }
+
+        final int[] signature = new int[SIZE];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        for (int start = 0; start + SHINGLE_WORDS <= words.size(); start++) {
+            long shingle = 0;
+            for (int i = start; i < start + SHINGLE_WORDS; i++) {
+                shingle = shingle * 1_000_003 + words.get(i).hashCode();
+            }
+            for (int i = 0; i < SIZE; i++) {
+                final int hash = (int) (mix(shingle ^ SEEDS[i]) >>> 32);
+                if (hash < signature[i]) signature[i] = hash;
+            }
+        }
+        return signature;
+    }
+
+    static double similarity(int[] a, int[] b) {
+        int equal = 0;
+        for (int i = 0; i < SIZE; i++) {
+            if (a[i] == b[i]) equal++;
+        }
+        return (double) equal / SIZE;
+    }
+
+    private static List<String> words(String text) {
+        final List<String> words = new ArrayList<>();
+        final StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            final char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word.append(Character.isDigit(c) ? '0' : Character.toLowerCase(c));
+            } else {
+                if (word.length() >= 2) words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Finalizer of SplitMix64, spreads the bits of the shingle hash over the whole value.
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+}
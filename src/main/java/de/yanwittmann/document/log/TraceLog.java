@@ -0,0 +1,240 @@
+package de.yanwittmann.document.log;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the prompts, completions and intermediate results of the documents to a trace file. Every entry names the
+ * document and the stage it belongs to, so that the entries of documents that were processed at the same time can be
+ * told apart.
+ * <p>
+ * Entries are put into a bounded queue and written in batches by a background thread, so the processing threads never
+ * wait for the disk. If the queue is full, new entries are either dropped, which is noted in the file once there is
+ * room again, or the caller waits for the writer.
+ * <p>
+ * The file is rotated once it reaches a maximum size or a maximum age. Rotated files get the time of the rotation in
+ * their name, are optionally compressed with gzip, and only the newest ones are kept.
+ */
+public class TraceLog implements Closeable {
+    private static final int MAX_BATCH = 256;
+    private static final DateTimeFormatter ENTRY_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+    private static final DateTimeFormatter ROTATION_TIME = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+    private static final Entry END = new Entry(0, null, null, null, null, null);
+
+    private final File file;
+    private final boolean blockWhenFull;
+    private final long rotateBytes;
+    private final long rotateIntervalMillis;
+    private final int keepFiles;
+    private final boolean compress;
+
+    private final BlockingQueue<Entry> queue;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    // only used by the writer thread
+    private OutputStream out;
+    private long size;
+    private long openedAt;
+
+    /**
+     * @param blockWhenFull        whether {@link #log(String, String, String, Object)} waits for room in the queue
+     *                             instead of dropping the entry
+     * @param rotateBytes          size after which the file is rotated, <code>0</code> to never rotate by size
+     * @param rotateIntervalMillis time after which the file is rotated, <code>0</code> to never rotate by time
+     * @param keepFiles            number of rotated files to keep
+     */
+    public TraceLog(File file, int queueCapacity, boolean blockWhenFull, long rotateBytes, long rotateIntervalMillis, int keepFiles, boolean compress) {
+        this.file = file.getAbsoluteFile();
+        this.blockWhenFull = blockWhenFull;
+        this.rotateBytes = rotateBytes;
+        this.rotateIntervalMillis = rotateIntervalMillis;
+        this.keepFiles = Math.max(0, keepFiles);
+        this.compress = compress;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+
+        this.writer = new Thread(this::writeEntries, "trace-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        // the writer is a daemon thread, the entries that are still queued on exit are written by the hook
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "trace-log-shutdown"));
+    }
+
+    /**
+     * Queues an entry. The text is taken from the value right away, so the value may be changed afterwards.
+     *
+     * @param document identifies the document the entry belongs to
+     * @param stage    the processing stage that produced the entry
+     * @param kind     what the entry contains, for example the prompt or the completion of a template
+     * @return the value, so that it can be logged where it is used
+     */
+    public <T> T log(String document, String stage, String kind, T value) {
+        if (closed) {
+            return value;
+        }
+        final Entry entry = new Entry(System.currentTimeMillis(), Thread.currentThread().getName(), document, stage, kind, String.valueOf(value));
+        if (blockWhenFull) {
+            try {
+                queue.put(entry);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else if (!queue.offer(entry)) {
+            dropped.incrementAndGet();
+        }
+        return value;
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Writes the entries that are still queued and closes the file. Entries that are logged afterwards are ignored.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(END);
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeEntries() {
+        final List<Entry> batch = new ArrayList<>();
+        boolean end = false;
+        while (!end) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+
+            try {
+                final long droppedEntries = dropped.getAndSet(0);
+                if (droppedEntries > 0) {
+                    write(("=== " + LocalDateTime.now().format(ENTRY_TIME) + " | " + droppedEntries
+                            + " entries dropped, the trace queue was full\n---\n").getBytes(StandardCharsets.UTF_8));
+                }
+                for (Entry entry : batch) {
+                    if (entry == END) {
+                        end = true;
+                        break;
+                    }
+                    write(entry.format().getBytes(StandardCharsets.UTF_8));
+                }
+                if (out != null) out.flush();
+            } catch (IOException e) {
+                System.err.println("Failed to write trace log " + file + ": " + e.getMessage());
+                closeFile();
+            }
+            batch.clear();
+        }
+        closeFile();
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        if (out != null && size > 0 && (rotateBytes > 0 && size + bytes.length > rotateBytes
+                || rotateIntervalMillis > 0 && System.currentTimeMillis() - openedAt >= rotateIntervalMillis)) {
+            rotate();
+        }
+        if (out == null) {
+            final File parent = file.getParentFile();
+            if (parent != null) Files.createDirectories(parent.toPath());
+            out = new BufferedOutputStream(new FileOutputStream(file, true), 64 * 1024);
+            size = file.length();
+            openedAt = System.currentTimeMillis();
+        }
+        out.write(bytes);
+        size += bytes.length;
+    }
+
+    private void rotate() throws IOException {
+        closeFile();
+        final File rotated = rotatedFile(LocalDateTime.now().format(ROTATION_TIME));
+        if (!file.renameTo(rotated)) {
+            throw new IOException("Could not rename " + file + " to " + rotated.getName());
+        }
+        if (compress) {
+            final File compressed = new File(rotated.getPath() + ".gz");
+            try (InputStream in = new BufferedInputStream(new FileInputStream(rotated));
+                 OutputStream gzip = new GZIPOutputStream(new FileOutputStream(compressed), 64 * 1024)) {
+                in.transferTo(gzip);
+            }
+            Files.delete(rotated.toPath());
+        }
+        deleteOldFiles();
+    }
+
+    private File rotatedFile(String time) {
+        final String name = file.getName();
+        final int dot = name.lastIndexOf('.');
+        for (int attempt = 0; ; attempt++) {
+            final String stamp = attempt == 0 ? time : time + "-" + attempt;
+            final File rotated = new File(file.getParentFile(), dot > 0 ? name.substring(0, dot) + "." + stamp + name.substring(dot) : name + "." + stamp);
+            if (!rotated.exists() && !new File(rotated.getPath() + ".gz").exists()) {
+                return rotated;
+            }
+        }
+    }
+
+    private void deleteOldFiles() {
+        final String name = file.getName();
+        final int dot = name.lastIndexOf('.');
+        final String prefix = (dot > 0 ? name.substring(0, dot) : name) + ".";
+        final File[] rotatedFiles = file.getParentFile().listFiles((dir, candidate) ->
+                candidate.startsWith(prefix) && !candidate.equals(name) && candidate.length() > prefix.length()
+                        && Character.isDigit(candidate.charAt(prefix.length())));
+        if (rotatedFiles == null || rotatedFiles.length <= keepFiles) {
+            return;
+        }
+        Arrays.sort(rotatedFiles, Comparator.comparingLong(File::lastModified).thenComparing(File::getName));
+        for (int i = 0; i < rotatedFiles.length - keepFiles; i++) {
+            if (!rotatedFiles[i].delete()) {
+                System.err.println("Could not delete old trace log " + rotatedFiles[i]);
+            }
+        }
+    }
+
+    private void closeFile() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close trace log " + file + ": " + e.getMessage());
+        }
+        out = null;
+    }
+
+    private record Entry(long time, String thread, String document, String stage, String kind, String text) {
+        String format() {
+            return "=== " + LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault()).format(ENTRY_TIME)
+                    + " | " + document + " | " + stage + " | " + kind + " | " + thread + "\n"
+                    + text + "\n---\n";
+        }
+    }
+}
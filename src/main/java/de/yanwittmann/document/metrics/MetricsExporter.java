@@ -0,0 +1,114 @@
+package de.yanwittmann.document.metrics;
+
+import javax.management.*;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes the metrics of a {@link MetricsRegistry} available outside of the process:
+ * <ul>
+ *     <li>as a file in the Prometheus text format, which is rewritten in the background at a fixed interval and once
+ *     more on exit. The file is replaced atomically, so it can be read by the textfile collector of the node exporter
+ *     at any time.</li>
+ *     <li>over JMX as the MBean <code>de.yanwittmann.document:type=Metrics</code>, with one attribute per time
+ *     series.</li>
+ * </ul>
+ */
+public class MetricsExporter {
+    public static final String MBEAN_NAME = "de.yanwittmann.document:type=Metrics";
+
+    private final MetricsRegistry registry;
+
+    public MetricsExporter(MetricsRegistry registry) {
+        this.registry = registry;
+    }
+
+    public void startFileExport(File file, long intervalSeconds) {
+        final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "metrics-export");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writer.scheduleWithFixedDelay(() -> writeFile(file), intervalSeconds, Math.max(1, intervalSeconds), TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> writeFile(file), "metrics-export-shutdown"));
+    }
+
+    public void writeFile(File file) {
+        try {
+            final Path target = file.getAbsoluteFile().toPath();
+            if (target.getParent() != null) Files.createDirectories(target.getParent());
+            final Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+            Files.writeString(temp, registry.toPrometheusText(), StandardCharsets.UTF_8);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to write metrics to " + file + ": " + e.getMessage());
+        }
+    }
+
+    public void registerMBean() throws JMException {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(MBEAN_NAME);
+        if (!server.isRegistered(name)) {
+            server.registerMBean(new MetricsMBean(registry), name);
+        }
+    }
+
+    /**
+     * Read-only MBean whose attributes are the time series of the registry at the time they are read, since new ones
+     * appear while documents are processed.
+     */
+    private record MetricsMBean(MetricsRegistry registry) implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            final Double value = registry.samples().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            final Map<String, Double> samples = registry.samples();
+            final AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (samples.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, samples.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            final MBeanAttributeInfo[] attributes = registry.samples().keySet().stream()
+                    .map(name -> new MBeanAttributeInfo(name, Double.class.getName(), name, true, false, false))
+                    .toArray(MBeanAttributeInfo[]::new);
+            return new MBeanInfo(MetricsMBean.class.getName(), "Document processing metrics", attributes, null, null, null);
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package de.yanwittmann.document.metrics;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Collects counters, histograms and gauges of the whole process, so that they can be exported by the
+ * {@link MetricsExporter}. Metrics are identified by a name in the Prometheus naming scheme and optional labels, given
+ * as alternating label names and values. Asking for the same name and labels again returns the same metric, so callers
+ * do not need to keep references around.
+ */
+public class MetricsRegistry {
+    private static final MetricsRegistry instance = new MetricsRegistry();
+
+    /**
+     * Upper bounds in seconds of the buckets of duration histograms. The steps cover both per-page work and model
+     * requests that take minutes.
+     */
+    private static final double[] DURATION_BUCKETS = {0.01, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 20, 30, 60, 120, 300};
+
+    private final Map<String, Family> families = new ConcurrentHashMap<>();
+
+    public static MetricsRegistry get() {
+        return instance;
+    }
+
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, "counter").children.computeIfAbsent(labelString(labels), key -> new Counter());
+    }
+
+    /**
+     * Registers a value that is read whenever the metrics are exported. Registering the same name and labels again
+     * replaces the previous value.
+     */
+    public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, "gauge").children.put(labelString(labels), new Gauge(value));
+    }
+
+    public Histogram durationHistogram(String name, String help, String... labels) {
+        return (Histogram) family(name, help, "histogram").children.computeIfAbsent(labelString(labels), key -> new Histogram(DURATION_BUCKETS));
+    }
+
+    /**
+     * @return all metrics in the Prometheus text exposition format
+     */
+    public String toPrometheusText() {
+        final StringBuilder text = new StringBuilder();
+        for (Family family : sortedFamilies()) {
+            text.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            text.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            family.samples((name, value) -> text.append(name).append(' ').append(formatValue(value)).append('\n'));
+        }
+        return text.toString();
+    }
+
+    /**
+     * @return the current value of every time series, keyed by name and labels as in the Prometheus format
+     */
+    public Map<String, Double> samples() {
+        final Map<String, Double> samples = new LinkedHashMap<>();
+        for (Family family : sortedFamilies()) {
+            family.samples(samples::put);
+        }
+        return samples;
+    }
+
+    private List<Family> sortedFamilies() {
+        final List<Family> sorted = new ArrayList<>(families.values());
+        sorted.sort(Comparator.comparing(family -> family.name));
+        return sorted;
+    }
+
+    private Family family(String name, String help, String type) {
+        final Family family = families.computeIfAbsent(name, key -> new Family(name, help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is already registered as " + family.type);
+        }
+        return family;
+    }
+
+    private static String labelString(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be given as name and value pairs: " + Arrays.toString(labels));
+        }
+        if (labels.length == 0) {
+            return "";
+        }
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) text.append(',');
+            text.append(labels[i]).append("=\"")
+                    .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return text.toString();
+    }
+
+    private static String formatValue(double value) {
+        if (Double.isNaN(value)) return "NaN";
+        if (Double.isInfinite(value)) return value > 0 ? "+Inf" : "-Inf";
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) return Long.toString((long) value);
+        return Double.toString(value);
+    }
+
+    private interface SampleConsumer {
+        void accept(String name, double value);
+    }
+
+    private interface Metric {
+        void samples(String name, String labels, SampleConsumer consumer);
+    }
+
+    private static class Family {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final Map<String, Metric> children = new ConcurrentHashMap<>();
+
+        private Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        private void samples(SampleConsumer consumer) {
+            final List<String> labels = new ArrayList<>(children.keySet());
+            Collections.sort(labels);
+            for (String label : labels) {
+                children.get(label).samples(name, label, consumer);
+            }
+        }
+    }
+
+    private static String series(String name, String labels) {
+        return labels.isEmpty() ? name : name + "{" + labels + "}";
+    }
+
+    public static class Counter implements Metric {
+        private final DoubleAdder value = new DoubleAdder();
+
+        public void increment() {
+            value.add(1);
+        }
+
+        public void add(double amount) {
+            value.add(amount);
+        }
+
+        public double get() {
+            return value.sum();
+        }
+
+        @Override
+        public void samples(String name, String labels, SampleConsumer consumer) {
+            consumer.accept(series(name, labels), value.sum());
+        }
+    }
+
+    private record Gauge(DoubleSupplier value) implements Metric {
+        @Override
+        public void samples(String name, String labels, SampleConsumer consumer) {
+            consumer.accept(series(name, labels), value.getAsDouble());
+        }
+    }
+
+    /**
+     * Counts observations in cumulative buckets, like a Prometheus histogram.
+     */
+    public static class Histogram implements Metric {
+        private final double[] bounds;
+        private final LongAdder[] buckets;
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        private Histogram(double[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new LongAdder[bounds.length];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observe(double value) {
+            for (int i = 0; i < bounds.length; i++) {
+                if (value <= bounds[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sum.add(value);
+        }
+
+        public void observeNanos(long nanos) {
+            observe(nanos / 1_000_000_000.0);
+        }
+
+        @Override
+        public void samples(String name, String labels, SampleConsumer consumer) {
+            final String prefix = labels.isEmpty() ? "" : labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                cumulative += buckets[i].sum();
+                consumer.accept(name + "_bucket{" + prefix + "le=\"" + formatValue(bounds[i]) + "\"}", cumulative);
+            }
+            // an observation may be counted in its bucket but not yet in the total
+            final long total = Math.max(cumulative, count.sum());
+            consumer.accept(name + "_bucket{" + prefix + "le=\"+Inf\"}", total);
+            consumer.accept(series(name + "_sum", labels), sum.sum());
+            consumer.accept(series(name + "_count", labels), total);
+        }
+    }
+}
@@ -33,10 +33,76 @@ public abstract class Config {
         AI_CHAT_MODEL("ai.chat.model", "llama3:8b"),
         AI_IMAGE_MODEL("ai.image.model", "llama3.2-vision"),
         AI_CHAT_BASEURL("ai.chat.baseurl", "http://localhost:11434"),
+        AI_IMAGE_BASEURL("ai.image.baseurl", null),
+        AI_ENDPOINT_MAX_CONCURRENT("ai.endpoint.max.concurrent", "2"),
+        AI_ENDPOINT_FAILURE_THRESHOLD("ai.endpoint.failure.threshold", "2"),
+        AI_ENDPOINT_HEALTH_INTERVAL_SECONDS("ai.endpoint.health.interval.seconds", "15"),
+        AI_TEMPLATES_DIR("ai.templates.dir", null),
+        AI_STREAMING_ENABLED("ai.streaming.enabled", "false"),
+        AI_SESSION_ENABLED("ai.session.enabled", "false"),
+        AI_SPECULATIVE_PATH_ENABLED("ai.speculative.path.enabled", "false"),
+        AI_SPECULATIVE_PATH_CHECK("ai.speculative.path.check", "year"),
+        AI_CONTEXT_PRUNING_ENABLED("ai.context.pruning.enabled", "false"),
+        AI_CONTEXT_PRUNING_TOP_K("ai.context.pruning.top.k", "8"),
+        AI_CACHE_ENABLED("ai.cache.enabled", "false"),
+        AI_CACHE_DIR("ai.cache.dir", "cache/completions"),
+        AI_CACHE_MAX_SIZE_MB("ai.cache.maxsize.mb", "128"),
+        AI_CACHE_MEMORY_ENTRIES("ai.cache.memory.entries", "256"),
+        AI_CACHE_TTL_HOURS("ai.cache.ttl.hours", "168"),
+        HISTORY_ENABLED("history.enabled", "false"),
+        HISTORY_FILE("history.file", "cache/history.jsonl"),
+        HISTORY_THRESHOLD("history.threshold", "0.8"),
+        HISTORY_MAX_ENTRIES("history.max.entries", "5000"),
         DOCUMENTS_REF_DIR_BASEPATH("documents.refdir.basepath", null),
+        DOCUMENTS_REF_DIR_WATCH("documents.refdir.watch", "true"),
         DOCUMENTS_MOVE_DIR_BASEPATH("documents.movedir.basepath", null),
+        DUPLICATES_CHECK("duplicates.check", "off"),
+        DUPLICATES_NEAR_DISTANCE("duplicates.near.distance", "40"),
+        DUPLICATES_INDEX_FILE("duplicates.index.file", "cache/duplicates.json"),
+        AUTODETECT_STABILITY_MS("autodetect.stability.ms", "5000"),
+        AUTODETECT_QUARANTINE_DIR("autodetect.quarantine.dir", null),
+        AUTODETECT_RETRY_BASE_MINUTES("autodetect.retry.base.minutes", "10"),
+        AUTODETECT_RETRY_MAX_ATTEMPTS("autodetect.retry.max.attempts", "3"),
         OCR_LANGUAGE("ocr.language", "eng"),
         OCR_METHOD("ocr.method", "ollama"),
+        OCR_TESSERACT_MODE("ocr.tesseract.mode", "docker"),
+        OCR_TESSERACT_POOL_SIZE("ocr.tesseract.pool.size", "0"),
+        OCR_TESSERACT_BINARY("ocr.tesseract.binary", "tesseract"),
+        OCR_TESSERACT_DOCKER_IMAGE("ocr.tesseract.docker.image", "tesseractshadow/tesseract4re"),
+        OCR_TESSERACT_TIMEOUT_SECONDS("ocr.tesseract.timeout.seconds", "120"),
+        OCR_PARALLEL_ENABLED("ocr.parallel.enabled", "false"),
+        OCR_TESSERACT_CONCURRENCY("ocr.tesseract.concurrency", "0"),
+        OCR_OLLAMA_CONCURRENCY("ocr.ollama.concurrency", "2"),
+        OCR_TESSERACT_DPI("ocr.tesseract.dpi", "300"),
+        OCR_TESSERACT_IMAGE_TYPE("ocr.tesseract.image.type", "gray"),
+        OCR_OLLAMA_IMAGE_SIZE("ocr.ollama.image.size", "1120"),
+        OCR_TEXTLAYER_ENABLED("ocr.textlayer.enabled", "false"),
+        OCR_TEXTLAYER_MIN_CHARS("ocr.textlayer.min.chars", "50"),
+        OCR_BUDGET_ENABLED("ocr.budget.enabled", "false"),
+        OCR_CACHE_ENABLED("ocr.cache.enabled", "false"),
+        OCR_CACHE_DIR("ocr.cache.dir", "cache/ocr"),
+        OCR_CACHE_MAX_SIZE_MB("ocr.cache.maxsize.mb", "256"),
+        CHECKPOINT_ENABLED("checkpoint.enabled", "false"),
+        CHECKPOINT_DIR("checkpoint.dir", "cache/checkpoints"),
+        CHECKPOINT_TTL_HOURS("checkpoint.ttl.hours", "168"),
+        PIPELINE_ENABLED("pipeline.enabled", "false"),
+        PIPELINE_QUEUE_CAPACITY("pipeline.queue.capacity", "2"),
+        PIPELINE_WORKERS_EXTRACT("pipeline.workers.extract", "1"),
+        PIPELINE_WORKERS_SUMMARIZE("pipeline.workers.summarize", "1"),
+        PIPELINE_WORKERS_NAME("pipeline.workers.name", "1"),
+        PIPELINE_WORKERS_PLACE("pipeline.workers.place", "1"),
+        PIPELINE_WORKERS_MOVE("pipeline.workers.move", "1"),
+        METRICS_PROMETHEUS_FILE("metrics.prometheus.file", null),
+        METRICS_PROMETHEUS_INTERVAL_SECONDS("metrics.prometheus.interval.seconds", "15"),
+        METRICS_JMX_ENABLED("metrics.jmx.enabled", "false"),
+        TRACE_ENABLED("trace.enabled", "true"),
+        TRACE_FILE("trace.file", "automatic-document-classification-log.txt"),
+        TRACE_QUEUE_CAPACITY("trace.queue.capacity", "1000"),
+        TRACE_QUEUE_POLICY("trace.queue.policy", "drop"),
+        TRACE_ROTATE_SIZE_MB("trace.rotate.size.mb", "20"),
+        TRACE_ROTATE_INTERVAL_HOURS("trace.rotate.interval.hours", "0"),
+        TRACE_ROTATE_KEEP("trace.rotate.keep", "5"),
+        TRACE_ROTATE_COMPRESS("trace.rotate.compress", "true"),
         ;
 
         private final String key;
@@ -45,5 +111,21 @@ public abstract class Config {
         public String get() {
             return Config.get(key, defaultValue);
         }
+
+        public int getInt() {
+            return Integer.parseInt(get().trim());
+        }
+
+        public long getLong() {
+            return Long.parseLong(get().trim());
+        }
+
+        public double getDouble() {
+            return Double.parseDouble(get().trim());
+        }
+
+        public boolean getBoolean() {
+            return Boolean.parseBoolean(get().trim());
+        }
     }
 }
@@ -0,0 +1,76 @@
+package de.yanwittmann.document.model;
+
+/**
+ * Console output for a single document. A direct block writes every line immediately, a buffered block collects its
+ * lines and writes them in one go on {@link #flush()}, so that documents processed concurrently do not interleave.
+ */
+public class ConsoleBlock {
+
+    private static final int TIME_WIDTH = 7;
+    private static final int ACTION_WIDTH = 20;
+    private static final int DETAILS_WIDTH = 30;
+    private static final int DIVIDER_LINE_LENGTH = 80;
+
+    private static final Object OUTPUT_LOCK = new Object();
+
+    private final StringBuilder buffer;
+
+    private ConsoleBlock(boolean buffered) {
+        this.buffer = buffered ? new StringBuilder() : null;
+    }
+
+    public static ConsoleBlock direct() {
+        return new ConsoleBlock(false);
+    }
+
+    public static ConsoleBlock buffered() {
+        return new ConsoleBlock(true);
+    }
+
+    public void step(String action, String details, String time) {
+        final String timePart = !time.isEmpty() ? String.format("[%" + TIME_WIDTH + "s]", time) : " ".repeat(TIME_WIDTH + 2);
+        final String actionPart = String.format("%-" + ACTION_WIDTH + "s", action + ":");
+        final String detailsPart = String.format("%-" + DETAILS_WIDTH + "s", details);
+
+        emit(String.format("│ %s %s %s", timePart, actionPart, detailsPart));
+    }
+
+    public void line(String text) {
+        emit("│ " + text);
+    }
+
+    public void errorBox(String message) {
+        horizontalLine("├");
+        emit(String.format("│ ERROR: %s", message));
+        horizontalLine("└");
+    }
+
+    public void horizontalLine(String prefix) {
+        emit(prefix + "─".repeat(DIVIDER_LINE_LENGTH - prefix.length() - 1));
+    }
+
+    public void flush() {
+        if (buffer == null) {
+            return;
+        }
+        synchronized (buffer) {
+            synchronized (OUTPUT_LOCK) {
+                System.out.print(buffer);
+                System.out.flush();
+            }
+            buffer.setLength(0);
+        }
+    }
+
+    private void emit(String line) {
+        if (buffer == null) {
+            synchronized (OUTPUT_LOCK) {
+                System.out.println(line);
+            }
+        } else {
+            synchronized (buffer) {
+                buffer.append(line).append(System.lineSeparator());
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package de.yanwittmann.document.model;
+
+/**
+ * Decides whether a path that was generated before the filename was known still fits the filename, or whether the
+ * path has to be generated again with the filename as additional input.
+ */
+public enum SpeculativePathCheck {
+    /**
+     * Always accepts the speculative path.
+     */
+    NONE {
+        @Override
+        public String findConflict(String path, String filename) {
+            return null;
+        }
+    },
+    /**
+     * Rejects the path if it contains a year directory that differs from the year of the date the filename starts
+     * with. Paths without year directories and filenames without a date are accepted.
+     */
+    YEAR {
+        @Override
+        public String findConflict(String path, String filename) {
+            final String filenameYear = leadingYear(filename);
+            if (filenameYear == null || path == null) {
+                return null;
+            }
+            for (String segment : path.split("[/\\\\]")) {
+                final String segmentYear = leadingYear(segment);
+                if (segmentYear != null && !segmentYear.equals(filenameYear)) {
+                    return "path year " + segmentYear + " does not match filename year " + filenameYear;
+                }
+            }
+            return null;
+        }
+    };
+
+    /**
+     * @return a description of the conflict, or <code>null</code> if the speculative path can be used
+     */
+    public abstract String findConflict(String path, String filename);
+
+    public static SpeculativePathCheck fromConfig(String value) {
+        return value == null || value.isBlank() ? YEAR : valueOf(value.trim().toUpperCase());
+    }
+
+    private static String leadingYear(String text) {
+        if (text == null || text.length() < 4) {
+            return null;
+        }
+        for (int i = 0; i < 4; i++) {
+            if (!Character.isDigit(text.charAt(i))) {
+                return null;
+            }
+        }
+        if (text.length() > 4 && Character.isDigit(text.charAt(4))) {
+            return null;
+        }
+        final String year = text.substring(0, 4);
+        return year.startsWith("19") || year.startsWith("20") ? year : null;
+    }
+}
@@ -1,5 +1,7 @@
 package de.yanwittmann.document.model;
 
+import de.yanwittmann.document.metrics.MetricsRegistry;
+
 public class TimeStats {
     private long startTime;
     private long duration = -1;
@@ -31,7 +33,20 @@ public class TimeStats {
         return formatDuration(stop());
     }
 
-    private String formatDuration(long nanos) {
+    /**
+     * Stops the measurement and records it in the histogram. Stopping an already stopped measurement records it again.
+     */
+    public long stop(MetricsRegistry.Histogram histogram) {
+        final long nanos = stop();
+        histogram.observeNanos(nanos);
+        return nanos;
+    }
+
+    public String stopFormatted(MetricsRegistry.Histogram histogram) {
+        return formatDuration(stop(histogram));
+    }
+
+    public static String formatDuration(long nanos) {
         if (nanos < 1_000_000) {
             return String.format("%dns", nanos);
         } else if (nanos < 1_000_000_000) {
@@ -0,0 +1,239 @@
+package de.yanwittmann.document.pdf;
+
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+/**
+ * Identifies the content of a document file in two ways: the SHA-256 of the bytes, which only matches copies of the
+ * same file, and a difference hash (dHash) of the first page, which also matches a second scan or a differently
+ * produced PDF of the same paper. The dHash is made from a {@value #GRID} by {@value #GRID} grid of the page, telling
+ * for every cell whether it is darker or lighter than its right neighbour, so it does not depend on resolution,
+ * compression or small shifts of the scan.
+ *
+ * @param pages number of pages, <code>1</code> for images and <code>0</code> for files that cannot be rendered
+ * @param dHash <code>null</code> for files that cannot be rendered
+ */
+public record DocumentFingerprint(String sha256, int pages, long[] dHash) {
+    private static final int GRID = 16;
+    private static final int BITS = GRID * GRID * 2;
+    /**
+     * Length in pixels of the longer side of the first page the hash is computed from, only the coarse layout is needed.
+     */
+    private static final int RENDER_SIZE = 320;
+    /**
+     * Difference in mean brightness below which neighbouring cells count as equal. Most cells of a document page are
+     * blank, and without a tolerance their bits would follow the paper texture and the noise of the scanner.
+     */
+    private static final double TOLERANCE = 2;
+    /**
+     * How much darker than the paper a pixel has to be to count as printed.
+     */
+    private static final double INK_CONTRAST = 48;
+
+    public static DocumentFingerprint of(File file) throws IOException {
+        final String sha256 = sha256(file);
+        final String name = file.getName().toLowerCase();
+        try {
+            if (name.endsWith(".pdf")) {
+                try (PDDocument document = Loader.loadPDF(file)) {
+                    if (document.getNumberOfPages() == 0) {
+                        return new DocumentFingerprint(sha256, 0, null);
+                    }
+                    final PDRectangle size = document.getPage(0).getCropBox();
+                    final BufferedImage image = new PDFRenderer(document)
+                            .renderImage(0, RENDER_SIZE / Math.max(size.getWidth(), size.getHeight()), ImageType.GRAY);
+                    return new DocumentFingerprint(sha256, document.getNumberOfPages(), dHash(image));
+                }
+            } else if (name.endsWith(".png") || name.endsWith(".jpg") || name.endsWith(".jpeg")) {
+                final BufferedImage image = ImageIO.read(file);
+                return image == null ? new DocumentFingerprint(sha256, 0, null) : new DocumentFingerprint(sha256, 1, dHash(image));
+            }
+        } catch (IOException | RuntimeException e) {
+            // encrypted or damaged files can still be recognized by their exact content
+        }
+        return new DocumentFingerprint(sha256, 0, null);
+    }
+
+    /**
+     * Most of a page is blank and sets no bits in either dHash, so the differing bits are counted relative to the set
+     * ones: two unrelated pages differ in about all of their set bits, no matter how much is printed on them.
+     *
+     * @return the share of differing dHash bits in percent, or {@link Integer#MAX_VALUE} if the documents cannot be
+     * compared because one of them could not be rendered or they differ in page count
+     */
+    public int distance(DocumentFingerprint other) {
+        if (dHash == null || other.dHash == null || pages != other.pages) {
+            return Integer.MAX_VALUE;
+        }
+        int differing = 0;
+        int set = 0;
+        for (int i = 0; i < dHash.length; i++) {
+            differing += Long.bitCount(dHash[i] ^ other.dHash[i]);
+            set += Long.bitCount(dHash[i]) + Long.bitCount(other.dHash[i]);
+        }
+        return set == 0 ? 0 : differing * 100 / set;
+    }
+
+    public String dHashHex() {
+        if (dHash == null) {
+            return null;
+        }
+        final StringBuilder hex = new StringBuilder();
+        for (long word : dHash) {
+            hex.append(HexFormat.of().toHexDigits(word));
+        }
+        return hex.toString();
+    }
+
+    public static long[] parseDHash(String hex) {
+        if (hex == null) {
+            return null;
+        }
+        final long[] dHash = new long[BITS / 64];
+        for (int i = 0; i < dHash.length; i++) {
+            dHash[i] = HexFormat.fromHexDigitsToLong(hex, i * 16, i * 16 + 16);
+        }
+        return dHash;
+    }
+
+    private static long[] dHash(BufferedImage image) {
+        final double[][] pixels = downscale(image);
+        final int[] box = contentBox(pixels);
+        if (box == null || box[2] - box[0] < GRID || box[3] - box[1] <= GRID) {
+            return null;
+        }
+
+        // mean brightness of GRID + 1 columns of the printed area, so that every row yields GRID comparisons
+        final double[][] cells = new double[GRID][GRID + 1];
+        final int[][] counts = new int[GRID][GRID + 1];
+        final int height = box[2] - box[0];
+        final int width = box[3] - box[1];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                cells[y * GRID / height][x * (GRID + 1) / width] += pixels[box[0] + y][box[1] + x];
+                counts[y * GRID / height][x * (GRID + 1) / width]++;
+            }
+        }
+
+        // two bits per neighbour pair, darker and lighter, so that pairs that look alike set neither
+        final long[] dHash = new long[BITS / 64];
+        for (int y = 0; y < GRID; y++) {
+            for (int x = 0; x < GRID; x++) {
+                final double left = cells[y][x] / counts[y][x];
+                final double right = cells[y][x + 1] / counts[y][x + 1];
+                final int bit = (y * GRID + x) * 2;
+                if (left < right - TOLERANCE) {
+                    dHash[bit / 64] |= 1L << (bit % 64);
+                } else if (left > right + TOLERANCE) {
+                    dHash[(bit + 1) / 64] |= 1L << ((bit + 1) % 64);
+                }
+            }
+        }
+        return dHash;
+    }
+
+    /**
+     * @return the brightness of the image, averaged over blocks so that the longer side has at most
+     * {@value #RENDER_SIZE} pixels
+     */
+    private static double[][] downscale(BufferedImage image) {
+        final int block = Math.max(1, (Math.max(image.getWidth(), image.getHeight()) + RENDER_SIZE - 1) / RENDER_SIZE);
+        final int width = image.getWidth() / block;
+        final int height = image.getHeight() / block;
+        final double[][] pixels = new double[height][width];
+        final int[] row = new int[width * block];
+        for (int y = 0; y < height * block; y++) {
+            image.getRGB(0, y, row.length, 1, row, 0, row.length);
+            final double[] pixelRow = pixels[y / block];
+            for (int x = 0; x < row.length; x++) {
+                final int rgb = row[x];
+                pixelRow[x / block] += ((rgb >> 16 & 0xFF) * 299 + (rgb >> 8 & 0xFF) * 587 + (rgb & 0xFF) * 114) / 1000.0;
+            }
+        }
+        for (double[] pixelRow : pixels) {
+            for (int x = 0; x < width; x++) {
+                pixelRow[x] /= block * block;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Finds the printed area, so that scans with different margins or a shifted sheet are compared by their content.
+     * Rows and columns with only a few dark pixels are ignored as dust and scanner noise.
+     *
+     * @return top, left, bottom and right (exclusive) of the printed area, or <code>null</code> for a blank page
+     */
+    private static int[] contentBox(double[][] pixels) {
+        if (pixels.length == 0 || pixels[0].length == 0) {
+            return null;
+        }
+        final int height = pixels.length;
+        final int width = pixels[0].length;
+        // most of a document page is paper, so the median brightness is the one of the paper
+        final double[] sorted = new double[height * width];
+        for (int y = 0; y < height; y++) {
+            System.arraycopy(pixels[y], 0, sorted, y * width, width);
+        }
+        Arrays.sort(sorted);
+        final double ink = sorted[sorted.length / 2] - INK_CONTRAST;
+
+        final int[] rowInk = new int[height];
+        final int[] columnInk = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (pixels[y][x] < ink) {
+                    rowInk[y]++;
+                    columnInk[x]++;
+                }
+            }
+        }
+        final int top = firstAbove(rowInk, Math.max(2, width / 100), false);
+        if (top < 0) {
+            return null;
+        }
+        final int bottom = firstAbove(rowInk, Math.max(2, width / 100), true) + 1;
+        final int left = firstAbove(columnInk, Math.max(2, height / 100), false);
+        final int right = firstAbove(columnInk, Math.max(2, height / 100), true) + 1;
+        return left < 0 ? null : new int[]{top, left, bottom, right};
+    }
+
+    private static int firstAbove(int[] counts, int minimum, boolean fromEnd) {
+        for (int i = 0; i < counts.length; i++) {
+            final int index = fromEnd ? counts.length - 1 - i : i;
+            if (counts[index] >= minimum) return index;
+        }
+        return -1;
+    }
+
+    public static String sha256(File file) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
@@ -5,27 +5,64 @@ import org.apache.commons.io.FileUtils;
 import org.apache.pdfbox.Loader;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.rendering.PDFRenderer;
+import org.apache.pdfbox.text.PDFTextStripper;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.util.function.Function;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
 public class OCRProcessor {
+    /**
+     * Extracts the text of a single encoded image, as produced by a {@link PageRenderer}.
+     */
     public interface TextExtractor {
-        String apply(File file) throws Exception;
+        String apply(byte[] image) throws Exception;
     }
 
+    private TesseractPool tesseractPool;
+
+    private static final ExecutorService pageExecutor = Executors.newCachedThreadPool(r -> {
+        final Thread thread = new Thread(r, "ocr-page");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     public String processFile(File inputFile, TextExtractor textExtractor) throws Exception {
+        return processFile(inputFile, textExtractor, PageRenderer.defaultRenderer(), 1);
+    }
+
+    /**
+     * @param maxInFlightPages how many PDF pages may be rendered and handed to the text extractor at the same time.
+     *                         The text of the pages is always returned in page order.
+     */
+    public String processFile(File inputFile, TextExtractor textExtractor, PageRenderer pageRenderer, int maxInFlightPages) throws Exception {
+        return joinPages(processFilePages(inputFile, textExtractor, pageRenderer, maxInFlightPages, 0).getPages());
+    }
+
+    /**
+     * Same as {@link #processFile(File, TextExtractor, PageRenderer, int)}, but returns the text of every page separately. Files that
+     * are not PDFs are treated as a single page.
+     *
+     * @param textBudget if positive, only as many pages are OCRed as are needed to fill the text that
+     *                   {@link #cleanOcrResult(String, int)} keeps with this length: pages are processed alternately from
+     *                   the start and the end of the document, and the pages in the middle are skipped (left
+     *                   <code>null</code>) once both halves are filled
+     */
+    public PageExtraction processFilePages(File inputFile, TextExtractor textExtractor, PageRenderer pageRenderer, int maxInFlightPages, int textBudget) throws Exception {
         if (isPDF(inputFile)) {
-            return processPDF(inputFile, textExtractor);
+            return processPDF(inputFile, textExtractor, pageRenderer, maxInFlightPages, textBudget);
         } else if (isImage(inputFile)) {
-            return textExtractor.apply(inputFile);
+            return new PageExtraction(List.of(textExtractor.apply(pageRenderer.prepareImage(inputFile))), 0, 1);
         } else {
-            return FileUtils.readFileToString(inputFile, "UTF-8");
+            return new PageExtraction(List.of(FileUtils.readFileToString(inputFile, "UTF-8")), 1, 0);
         }
     }
 
@@ -38,49 +75,240 @@ public class OCRProcessor {
         return name.endsWith(".png") || name.endsWith(".jpg") || name.endsWith(".jpeg");
     }
 
-    private String processPDF(File pdfFile, TextExtractor textExtractor) throws Exception {
+    private PageExtraction processPDF(File pdfFile, TextExtractor textExtractor, PageRenderer pageRenderer, int maxInFlightPages, int textBudget) throws Exception {
         try (PDDocument document = Loader.loadPDF(pdfFile)) {
             if (document.getNumberOfPages() > 0) {
-                return extractTextFromPDF(document, textExtractor);
+                return extractTextFromPDF(pdfFile, document, textExtractor, pageRenderer, maxInFlightPages, textBudget);
+            }
+            return new PageExtraction(List.of(), 0, 0);
+        }
+    }
+
+    private PageExtraction extractTextFromPDF(File pdfFile, PDDocument document, TextExtractor textExtractor, PageRenderer pageRenderer, int maxInFlightPages, int textBudget) throws Exception {
+        final String[] pages = new String[document.getNumberOfPages()];
+        final int textLayerPages = Config.Props.OCR_TEXTLAYER_ENABLED.getBoolean() ? extractTextLayer(document, pages) : 0;
+        final int[] ocrPages = textBudget > 0
+                ? IntStream.range(0, pages.length).map(i -> i % 2 == 0 ? i / 2 : pages.length - 1 - i / 2).filter(i -> pages[i] == null).toArray()
+                : IntStream.range(0, pages.length).filter(i -> pages[i] == null).toArray();
+        if (ocrPages.length == 0 || isBudgetFilled(pages, textBudget)) {
+            return new PageExtraction(Arrays.asList(pages), textLayerPages, 0, ocrPages.length);
+        }
+
+        final AtomicInteger nextPage = new AtomicInteger();
+        final PageSink pageSink = new PageSink(pages, textBudget, nextPage, ocrPages.length);
+
+        // PDFBox documents must not be shared between threads, so every additional worker opens its own copy
+        final int workers = Math.max(1, Math.min(maxInFlightPages, ocrPages.length));
+        final List<Future<?>> futures = new ArrayList<>();
+        for (int w = 1; w < workers; w++) {
+            futures.add(pageExecutor.submit(() -> {
+                try (PDDocument workerDocument = Loader.loadPDF(pdfFile)) {
+                    extractPages(workerDocument, ocrPages, nextPage, pageSink, pageRenderer, textExtractor);
+                }
+                return null;
+            }));
+        }
+
+        Exception failure = null;
+        try {
+            extractPages(document, ocrPages, nextPage, pageSink, pageRenderer, textExtractor);
+        } catch (Exception e) {
+            failure = e;
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+
+        return new PageExtraction(Arrays.asList(pages), textLayerPages, pageSink.getProcessed(), ocrPages.length - pageSink.getProcessed());
+    }
+
+    /**
+     * Takes the text of all pages that already contain enough readable text from the PDF itself, so that only the
+     * scanned pages have to be rendered and OCRed.
+     *
+     * @return the number of pages that were filled in
+     */
+    private int extractTextLayer(PDDocument document, String[] pages) throws IOException {
+        final int minChars = Config.Props.OCR_TEXTLAYER_MIN_CHARS.getInt();
+        final PDFTextStripper stripper = new PDFTextStripper();
+        int extracted = 0;
+        for (int i = 0; i < pages.length; i++) {
+            stripper.setStartPage(i + 1);
+            stripper.setEndPage(i + 1);
+            final String text = stripper.getText(document);
+            if (isReadableText(text, minChars)) {
+                pages[i] = text;
+                extracted++;
+            }
+        }
+        return extracted;
+    }
+
+    /**
+     * A text layer is only trusted if it has enough characters and consists mostly of letters, digits and common
+     * punctuation. Broken font encodings produce replacement or control characters instead, and scanned PDFs
+     * sometimes carry a few stray characters (page numbers, a stamp) on otherwise image-only pages.
+     */
+    static boolean isReadableText(String text, int minChars) {
+        int visible = 0;
+        int readable = 0;
+        int letters = 0;
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (Character.isWhitespace(c)) continue;
+            visible++;
+            if (Character.isLetter(c)) {
+                letters++;
+                readable++;
+            } else if (Character.isDigit(c) || ".,;:!?-–+*/%&()[]'\"€$§@#_=<>".indexOf(c) != -1) {
+                readable++;
+            }
+        }
+        return visible >= minChars && readable >= visible * 0.9 && letters >= visible * 0.4;
+    }
+
+    private void extractPages(PDDocument document, int[] pageIndices, AtomicInteger nextPage, PageSink pageSink, PageRenderer pageRenderer, TextExtractor textExtractor) throws Exception {
+        final PDFRenderer renderer = new PDFRenderer(document);
+        int next;
+        while ((next = nextPage.getAndIncrement()) < pageIndices.length) {
+            final int i = pageIndices[next];
+            try {
+                final byte[] image = pageRenderer.renderPage(renderer, document.getPage(i).getCropBox(), i);
+                pageSink.accept(i, textExtractor.apply(image));
+            } catch (Exception e) {
+                // stop the other workers from picking up new pages
+                nextPage.set(pageIndices.length);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Collects the page texts of all workers and stops the workers once the text budget is filled.
+     */
+    private static class PageSink {
+        private final String[] pages;
+        private final int textBudget;
+        private final AtomicInteger nextPage;
+        private final int pageCount;
+        private int processed = 0;
+
+        private PageSink(String[] pages, int textBudget, AtomicInteger nextPage, int pageCount) {
+            this.pages = pages;
+            this.textBudget = textBudget;
+            this.nextPage = nextPage;
+            this.pageCount = pageCount;
+        }
+
+        private synchronized void accept(int page, String text) {
+            pages[page] = text;
+            processed++;
+            if (isBudgetFilled(pages, textBudget)) {
+                nextPage.set(pageCount);
             }
-            return "";
+        }
+
+        private synchronized int getProcessed() {
+            return processed;
         }
     }
 
-    private String extractTextFromPDF(PDDocument document, TextExtractor textExtractor) throws Exception {
-        PDFRenderer renderer = new PDFRenderer(document);
-        Path tempDir = Files.createTempDirectory("pdf_images");
-        StringBuilder text = new StringBuilder();
+    /**
+     * @return whether the pages that are complete from the start and from the end of the document both contain at least
+     * half of the budget, which is all that {@link #cleanOcrResult(String, int)} keeps of the whole text
+     */
+    private static boolean isBudgetFilled(String[] pages, int textBudget) {
+        if (textBudget <= 0) {
+            return false;
+        }
+        final int half = textBudget / 2;
+        final StringBuilder head = new StringBuilder();
+        int headPages = 0;
+        while (headPages < pages.length && pages[headPages] != null) {
+            head.append(pages[headPages++]);
+        }
+        if (headPages == pages.length) {
+            return true;
+        }
+        if (normalizeWhitespace(head.toString()).length() < half) {
+            return false;
+        }
 
-        for (int i = 0; i < document.getNumberOfPages(); i++) {
-            BufferedImage image = renderer.renderImageWithDPI(i, 300);
-            File tempImage = new File(tempDir.toFile(), "page_" + i + ".png");
-            ImageIO.write(image, "png", tempImage);
-            text.append(textExtractor.apply(tempImage));
+        final StringBuilder tail = new StringBuilder();
+        for (int i = pages.length - 1; i >= headPages && pages[i] != null; i--) {
+            tail.insert(0, pages[i]);
         }
+        return normalizeWhitespace(tail.toString()).length() >= half;
+    }
 
-        FileUtils.deleteDirectory(tempDir.toFile());
+    /**
+     * Joins the page texts, pages that were skipped are left out.
+     */
+    public static String joinPages(List<String> pages) {
+        final StringBuilder text = new StringBuilder();
+        for (String page : pages) {
+            if (page != null) text.append(page);
+        }
         return text.toString();
     }
 
-    public String runTesseractOCR(File imageFile) throws IOException {
-        ProcessBuilder pb = new ProcessBuilder(
-                "docker", "run", "--rm",
-                "-v", imageFile.getParent() + ":/data",
-                "tesseractshadow/tesseract4re",
-                "tesseract", "/data/" + imageFile.getName(), "stdout",
-                "-l", Config.Props.OCR_LANGUAGE.get()
-        );
+    public String runTesseractOCR(byte[] image) throws IOException {
+        return getTesseractPool().recognize(image);
+    }
 
-        final Process process = pb.start();
-        return new String(process.getInputStream().readAllBytes());
+    /**
+     * @return the number of pages of a document that are recognized at the same time
+     */
+    public static int getPageConcurrency() {
+        if (!Config.Props.OCR_PARALLEL_ENABLED.getBoolean()) {
+            return 1;
+        }
+        if (Config.Props.OCR_METHOD.get().equals("tesseract")) {
+            final int configured = Config.Props.OCR_TESSERACT_CONCURRENCY.getInt();
+            return configured > 0 ? configured : Runtime.getRuntime().availableProcessors();
+        }
+        return Math.max(1, Config.Props.OCR_OLLAMA_CONCURRENCY.getInt());
+    }
+
+    /**
+     * @return the configured pool size, or by default one worker for every page that can be recognized at the same
+     * time, over all documents in the extract stage of the pipeline
+     */
+    private static int getTesseractPoolSize() {
+        final int configured = Config.Props.OCR_TESSERACT_POOL_SIZE.getInt();
+        if (configured > 0) {
+            return configured;
+        }
+        final int documents = Config.Props.PIPELINE_ENABLED.getBoolean() ? Math.max(1, Config.Props.PIPELINE_WORKERS_EXTRACT.getInt()) : 1;
+        return getPageConcurrency() * documents;
+    }
+
+    private synchronized TesseractPool getTesseractPool() throws IOException {
+        if (tesseractPool == null) {
+            final TesseractPool pool = new TesseractPool(
+                    Config.Props.OCR_TESSERACT_MODE.get(),
+                    getTesseractPoolSize(),
+                    Config.Props.OCR_LANGUAGE.get(),
+                    Config.Props.OCR_TESSERACT_BINARY.get(),
+                    Config.Props.OCR_TESSERACT_DOCKER_IMAGE.get(),
+                    Config.Props.OCR_TESSERACT_TIMEOUT_SECONDS.getLong());
+            Runtime.getRuntime().addShutdownHook(new Thread(pool::close, "tesseract-shutdown"));
+            tesseractPool = pool;
+        }
+        return tesseractPool;
     }
 
     public String cleanOcrResult(String content, int maxLength) {
-        content = content
-                .replaceAll(" {2,}", " ")
-                .replaceAll("\n{2,}", "\n")
-                .replaceAll("[\n ]{2,}", "\n");
+        content = normalizeWhitespace(content);
 
         if (content.length() <= maxLength) {
             return content;
@@ -89,4 +317,11 @@ public class OCRProcessor {
         final int half = maxLength / 2;
         return content.substring(0, half) + "..." + content.substring(content.length() - half);
     }
+
+    private static String normalizeWhitespace(String content) {
+        return content
+                .replaceAll(" {2,}", " ")
+                .replaceAll("\n{2,}", "\n")
+                .replaceAll("[\n ]{2,}", "\n");
+    }
 }
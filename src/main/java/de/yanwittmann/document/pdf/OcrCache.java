@@ -0,0 +1,134 @@
+package de.yanwittmann.document.pdf;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Persistent cache of per-page OCR results. Entries are stored as one JSON file per key in the cache directory and are
+ * addressed by the hash of the document content plus a variant string describing how the text was extracted (OCR
+ * method, language, model), so that changing any of those leads to a cache miss.
+ * <p>
+ * The directory is kept below a maximum size by evicting the least recently used entries, the recency of an entry is
+ * the last modified time of its file, which survives restarts.
+ */
+public class OcrCache {
+    private final File directory;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> entrySizes = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    public OcrCache(File directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        FileUtils.forceMkdir(directory);
+
+        final File[] files = directory.listFiles((dir, name) -> name.endsWith(".json"));
+        if (files != null) {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File file : files) {
+                entrySizes.put(file.getName().substring(0, file.getName().length() - ".json".length()), file.length());
+                totalBytes += file.length();
+            }
+        }
+        evict();
+    }
+
+    public static String key(File file, String variant) throws IOException {
+        final MessageDigest digest = sha256();
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            final byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        digest.update((byte) 0);
+        digest.update(variant.getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * @return the cached page texts, or <code>null</code> if there is no (readable) entry for the key
+     */
+    public synchronized List<String> get(String key) {
+        if (!entrySizes.containsKey(key)) {
+            return null;
+        }
+
+        final File file = entryFile(key);
+        try {
+            final JSONArray pages = new JSONObject(FileUtils.readFileToString(file, StandardCharsets.UTF_8)).getJSONArray("pages");
+            final List<String> result = new ArrayList<>(pages.length());
+            for (int i = 0; i < pages.length(); i++) {
+                result.add(pages.isNull(i) ? null : pages.getString(i));
+            }
+            file.setLastModified(System.currentTimeMillis());
+            return result;
+        } catch (IOException | JSONException e) {
+            remove(key);
+            return null;
+        }
+    }
+
+    public synchronized void put(String key, String variant, List<String> pages) throws IOException {
+        final JSONArray pagesJson = new JSONArray();
+        pages.forEach(page -> pagesJson.put(page == null ? JSONObject.NULL : page));
+        final String content = new JSONObject()
+                .put("variant", variant)
+                .put("created", System.currentTimeMillis())
+                .put("pages", pagesJson)
+                .toString();
+
+        // write to a temporary file first, so that a crash never leaves a truncated entry behind
+        final File file = entryFile(key);
+        final File tempFile = new File(directory, key + ".tmp");
+        FileUtils.writeStringToFile(tempFile, content, StandardCharsets.UTF_8);
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        final Long previous = entrySizes.put(key, file.length());
+        totalBytes += file.length() - (previous == null ? 0 : previous);
+        evict();
+    }
+
+    private void evict() {
+        final Iterator<Map.Entry<String, Long>> iterator = entrySizes.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            final Map.Entry<String, Long> eldest = iterator.next();
+            FileUtils.deleteQuietly(entryFile(eldest.getKey()));
+            totalBytes -= eldest.getValue();
+            iterator.remove();
+        }
+    }
+
+    private void remove(String key) {
+        final Long size = entrySizes.remove(key);
+        if (size != null) {
+            totalBytes -= size;
+        }
+        FileUtils.deleteQuietly(entryFile(key));
+    }
+
+    private File entryFile(String key) {
+        return new File(directory, key + ".json");
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package de.yanwittmann.document.pdf;
+
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * Text of the pages of a document, together with how the text was obtained.
+ */
+@Getter
+public class PageExtraction {
+    private final List<String> pages;
+    /**
+     * Pages whose text was taken from the text layer of the PDF (or read from a plain text file).
+     */
+    private final int textLayerPages;
+    /**
+     * Pages that had to be rendered and passed to the OCR backend.
+     */
+    private final int ocrPages;
+    /**
+     * Pages that were not processed because the text budget was already filled, their text is <code>null</code>.
+     */
+    private final int skippedPages;
+
+    public PageExtraction(List<String> pages, int textLayerPages, int ocrPages) {
+        this(pages, textLayerPages, ocrPages, 0);
+    }
+
+    public PageExtraction(List<String> pages, int textLayerPages, int ocrPages, int skippedPages) {
+        this.pages = pages;
+        this.textLayerPages = textLayerPages;
+        this.ocrPages = ocrPages;
+        this.skippedPages = skippedPages;
+    }
+
+    public String describe() {
+        final String processed = textLayerPages == 0
+                ? ocrPages + " page" + (ocrPages == 1 ? "" : "s") + " OCRed"
+                : textLayerPages + " from text layer, " + ocrPages + " OCRed";
+        return skippedPages == 0 ? processed : processed + ", " + skippedPages + " skipped";
+    }
+}
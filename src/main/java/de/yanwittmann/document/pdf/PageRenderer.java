@@ -0,0 +1,114 @@
+package de.yanwittmann.document.pdf;
+
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Turns PDF pages and image files into encoded images in memory, in the form the OCR backend works best with.
+ * Tesseract gets grayscale or black and white PNGs at a fixed resolution, vision models get images that are scaled
+ * to the input size of the model, since anything larger is scaled down by the model anyway and only costs upload and
+ * decoding time.
+ */
+public class PageRenderer {
+    private final ImageType imageType;
+    private final float dpi;
+    private final int maxSide;
+    private final String format;
+
+    private PageRenderer(ImageType imageType, float dpi, int maxSide, String format) {
+        this.imageType = imageType;
+        this.dpi = dpi;
+        this.maxSide = maxSide;
+        this.format = format;
+    }
+
+    /**
+     * @param imageType <code>gray</code> or <code>binary</code>
+     */
+    public static PageRenderer forTesseract(int dpi, String imageType) {
+        return switch (imageType) {
+            case "gray" -> new PageRenderer(ImageType.GRAY, dpi, 0, "png");
+            case "binary" -> new PageRenderer(ImageType.BINARY, dpi, 0, "png");
+            default -> throw new IllegalArgumentException("Unknown Tesseract image type: " + imageType);
+        };
+    }
+
+    /**
+     * @param maxSide length in pixels of the longer side of the rendered page
+     */
+    public static PageRenderer forVisionModel(int maxSide) {
+        return new PageRenderer(ImageType.RGB, 0, maxSide, "jpg");
+    }
+
+    /**
+     * Full-colour PNGs at 300 DPI, the same images that used to be written to temporary files.
+     */
+    public static PageRenderer defaultRenderer() {
+        return new PageRenderer(ImageType.RGB, 300, 0, "png");
+    }
+
+    public byte[] renderPage(PDFRenderer renderer, PDRectangle pageSize, int pageIndex) throws IOException {
+        final float scale = maxSide > 0
+                ? maxSide / Math.max(pageSize.getWidth(), pageSize.getHeight())
+                : dpi / 72f;
+        final BufferedImage image = renderer.renderImage(pageIndex, scale, imageType);
+        try {
+            return encode(image);
+        } finally {
+            image.flush();
+        }
+    }
+
+    /**
+     * Image files are passed on unchanged, unless they are larger than the size a vision model accepts.
+     */
+    public byte[] prepareImage(File imageFile) throws IOException {
+        final byte[] original = Files.readAllBytes(imageFile.toPath());
+        if (maxSide <= 0) {
+            return original;
+        }
+
+        final BufferedImage image = ImageIO.read(imageFile);
+        if (image == null || Math.max(image.getWidth(), image.getHeight()) <= maxSide) {
+            return original;
+        }
+
+        final double scale = (double) maxSide / Math.max(image.getWidth(), image.getHeight());
+        final BufferedImage scaled = new BufferedImage(
+                Math.max(1, (int) Math.round(image.getWidth() * scale)),
+                Math.max(1, (int) Math.round(image.getHeight() * scale)),
+                BufferedImage.TYPE_INT_RGB);
+        final Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, scaled.getWidth(), scaled.getHeight(), null);
+        } finally {
+            graphics.dispose();
+        }
+        return encode(scaled);
+    }
+
+    /**
+     * Identifies the rendering settings, so that cached OCR results of differently rendered pages are not mixed.
+     */
+    public String describe() {
+        return imageType.name().toLowerCase() + (maxSide > 0 ? maxSide + "px" : Math.round(dpi) + "dpi");
+    }
+
+    private byte[] encode(BufferedImage image) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+        if (!ImageIO.write(image, format, out)) {
+            throw new IOException("No image writer for " + format);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,229 @@
+package de.yanwittmann.document.pdf;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+/**
+ * A fixed number of reusable Tesseract workers. Either long-running Docker containers that every page is sent to via
+ * {@code docker exec}, or a locally installed {@code tesseract} binary. Images are piped into Tesseract via stdin, the
+ * recognized text is read from stdout.
+ * <p>
+ * Workers are health-checked before they are handed out and restarted if their container died.
+ */
+public class TesseractPool implements Closeable {
+
+    private static final long HEALTH_CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private static final ExecutorService streamReader = Executors.newCachedThreadPool(r -> {
+        final Thread thread = new Thread(r, "tesseract-stream");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final BlockingQueue<Worker> idle;
+    private final List<Worker> workers = new ArrayList<>();
+    private final String language;
+    private final long timeoutSeconds;
+
+    public TesseractPool(String mode, int size, String language, String binary, String dockerImage, long timeoutSeconds) throws IOException {
+        if (size < 1) throw new IllegalArgumentException("Tesseract pool size must be positive");
+        this.language = language;
+        this.timeoutSeconds = timeoutSeconds;
+        this.idle = new ArrayBlockingQueue<>(size);
+
+        final String instanceId = UUID.randomUUID().toString().substring(0, 8);
+        for (int i = 0; i < size; i++) {
+            final Worker worker = switch (mode) {
+                case "docker" -> new DockerWorker("adc-tesseract-" + instanceId + "-" + i, dockerImage);
+                case "local" -> new LocalWorker(binary);
+                default -> throw new IllegalArgumentException("Unknown Tesseract mode: " + mode);
+            };
+            workers.add(worker);
+        }
+
+        try {
+            for (Worker worker : workers) {
+                worker.start();
+                idle.add(worker);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public String recognize(byte[] image) throws IOException {
+        final Worker worker;
+        try {
+            worker = idle.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a Tesseract worker", e);
+        }
+
+        try {
+            if (System.nanoTime() - worker.lastHealthy > HEALTH_CHECK_INTERVAL_NANOS && !worker.isHealthy()) {
+                worker.restart();
+            }
+
+            ProcessResult result = worker.recognize(image);
+            if (result.exitCode() == 0) {
+                worker.lastHealthy = System.nanoTime();
+            } else if (!worker.isHealthy()) {
+                // the worker crashed while processing, give the page one more try on a fresh worker
+                worker.restart();
+                result = worker.recognize(image);
+            }
+
+            if (result.exitCode() != 0) {
+                throw new IOException("Tesseract failed with exit code " + result.exitCode() + ": " + result.stderr().trim());
+            }
+            return result.stdout();
+        } finally {
+            idle.add(worker);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (Worker worker : workers) {
+            try {
+                worker.stop();
+            } catch (IOException e) {
+                System.err.println("Failed to stop Tesseract worker: " + e.getMessage());
+            }
+        }
+    }
+
+    private ProcessResult run(List<String> command, byte[] stdin) throws IOException {
+        final Process process = new ProcessBuilder(command).start();
+
+        // stdout and stderr are drained concurrently so that neither pipe can fill up and block the process
+        final CompletableFuture<byte[]> stderr = CompletableFuture.supplyAsync(() -> readFully(process.getErrorStream()), streamReader);
+        final CompletableFuture<byte[]> stdout = CompletableFuture.supplyAsync(() -> readFully(process.getInputStream()), streamReader);
+
+        try (OutputStream in = process.getOutputStream()) {
+            if (stdin != null) {
+                in.write(stdin);
+            }
+        } catch (IOException e) {
+            // the process exited before consuming its input, the exit code and stderr will tell why
+        }
+
+        try {
+            if (!process.waitFor(timeoutSeconds, TimeUnit.SECONDS)) {
+                process.destroyForcibly();
+                throw new IOException("Tesseract timed out after " + timeoutSeconds + "s: " + String.join(" ", command));
+            }
+            return new ProcessResult(process.exitValue(),
+                    new String(stdout.get(), StandardCharsets.UTF_8),
+                    new String(stderr.get(), StandardCharsets.UTF_8));
+        } catch (InterruptedException e) {
+            process.destroyForcibly();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for Tesseract", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to read Tesseract output", e.getCause());
+        }
+    }
+
+    private static byte[] readFully(InputStream stream) {
+        try (stream) {
+            return stream.readAllBytes();
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    private record ProcessResult(int exitCode, String stdout, String stderr) {
+    }
+
+    private abstract static class Worker {
+        private long lastHealthy = System.nanoTime();
+
+        abstract void start() throws IOException;
+
+        abstract boolean isHealthy() throws IOException;
+
+        abstract ProcessResult recognize(byte[] image) throws IOException;
+
+        abstract void stop() throws IOException;
+
+        void restart() throws IOException {
+            stop();
+            start();
+            lastHealthy = System.nanoTime();
+        }
+    }
+
+    private class DockerWorker extends Worker {
+        private final String containerName;
+        private final String image;
+
+        private DockerWorker(String containerName, String image) {
+            this.containerName = containerName;
+            this.image = image;
+        }
+
+        @Override
+        void start() throws IOException {
+            final ProcessResult result = run(List.of("docker", "run", "-d", "--rm", "--name", containerName,
+                    "--entrypoint", "tail", image, "-f", "/dev/null"), null);
+            if (result.exitCode() != 0) {
+                throw new IOException("Failed to start Tesseract container " + containerName + ": " + result.stderr().trim());
+            }
+        }
+
+        @Override
+        boolean isHealthy() throws IOException {
+            final ProcessResult result = run(List.of("docker", "inspect", "-f", "{{.State.Running}}", containerName), null);
+            return result.exitCode() == 0 && result.stdout().trim().equals("true");
+        }
+
+        @Override
+        ProcessResult recognize(byte[] image) throws IOException {
+            return run(List.of("docker", "exec", "-i", containerName, "tesseract", "stdin", "stdout", "-l", language), image);
+        }
+
+        @Override
+        void stop() throws IOException {
+            run(List.of("docker", "rm", "-f", containerName), null);
+        }
+    }
+
+    private class LocalWorker extends Worker {
+        private final String binary;
+
+        private LocalWorker(String binary) {
+            this.binary = binary;
+        }
+
+        @Override
+        void start() throws IOException {
+            if (!isHealthy()) {
+                throw new IOException("Tesseract binary not usable: " + binary);
+            }
+        }
+
+        @Override
+        boolean isHealthy() throws IOException {
+            return run(List.of(binary, "--version"), null).exitCode() == 0;
+        }
+
+        @Override
+        ProcessResult recognize(byte[] image) throws IOException {
+            return run(List.of(binary, "stdin", "stdout", "-l", language), image);
+        }
+
+        @Override
+        void stop() {
+        }
+    }
+}
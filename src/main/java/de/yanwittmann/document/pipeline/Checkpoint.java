@@ -0,0 +1,76 @@
+package de.yanwittmann.document.pipeline;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.json.JSONObject;
+
+/**
+ * Results of the stages a document completed, stored by the {@link CheckpointJournal} so that the document can resume
+ * after the last of them when it is processed again.
+ */
+@Getter
+@Setter
+public class Checkpoint {
+    /**
+     * SHA-256 of the document content, so that a document is recognized after it was renamed or moved back.
+     */
+    private final String key;
+    private String source;
+    /**
+     * The last completed stage.
+     */
+    private String stage;
+    private long updated;
+
+    private String ocrText;
+    private String summary;
+    private String filename;
+    private String path;
+    private boolean fromHistory;
+    private long classificationNanos;
+
+    /**
+     * Written before the file is moved, see {@link #isMoveCommitted()}.
+     */
+    private String moveTarget;
+    /**
+     * Written after the file was moved, while the index, history and reference tree are updated.
+     */
+    private boolean moveCommitted;
+
+    public Checkpoint(String key) {
+        this.key = key;
+    }
+
+    JSONObject toJson() {
+        return new JSONObject()
+                .put("key", key)
+                .putOpt("source", source)
+                .putOpt("stage", stage)
+                .put("updated", updated)
+                .putOpt("ocrText", ocrText)
+                .putOpt("summary", summary)
+                .putOpt("filename", filename)
+                .putOpt("path", path)
+                .put("fromHistory", fromHistory)
+                .put("classificationNanos", classificationNanos)
+                .putOpt("moveTarget", moveTarget)
+                .put("moveCommitted", moveCommitted);
+    }
+
+    static Checkpoint fromJson(JSONObject json) {
+        final Checkpoint checkpoint = new Checkpoint(json.getString("key"));
+        checkpoint.source = json.optString("source", null);
+        checkpoint.stage = json.optString("stage", null);
+        checkpoint.updated = json.optLong("updated");
+        checkpoint.ocrText = json.optString("ocrText", null);
+        checkpoint.summary = json.optString("summary", null);
+        checkpoint.filename = json.optString("filename", null);
+        checkpoint.path = json.optString("path", null);
+        checkpoint.fromHistory = json.optBoolean("fromHistory");
+        checkpoint.classificationNanos = json.optLong("classificationNanos");
+        checkpoint.moveTarget = json.optString("moveTarget", null);
+        checkpoint.moveCommitted = json.optBoolean("moveCommitted");
+        return checkpoint;
+    }
+}
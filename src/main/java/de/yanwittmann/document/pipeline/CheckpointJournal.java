@@ -0,0 +1,98 @@
+package de.yanwittmann.document.pipeline;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores one {@link Checkpoint} per document in a directory, named after the content hash of the document. Every
+ * write goes to a temporary file that is flushed to disk and then renamed over the previous state, so after a crash
+ * a checkpoint is either the previous or the new state, never a mix.
+ * <p>
+ * The checkpoint of a document is deleted once it has been moved. What remains are documents that failed or were
+ * interrupted, they are kept until they are processed again or expire.
+ */
+public class CheckpointJournal {
+    private static final String EXTENSION = ".json";
+
+    private final File directory;
+
+    /**
+     * @param maxAgeMillis checkpoints that were not updated for this long are deleted, unless a move was started
+     */
+    public CheckpointJournal(File directory, long maxAgeMillis) throws IOException {
+        this.directory = directory;
+        FileUtils.forceMkdir(directory);
+
+        final long expired = System.currentTimeMillis() - maxAgeMillis;
+        for (Checkpoint checkpoint : list()) {
+            if (checkpoint.getUpdated() < expired && checkpoint.getMoveTarget() == null) {
+                delete(checkpoint.getKey());
+            }
+        }
+    }
+
+    /**
+     * @return the checkpoint of the document, or <code>null</code> if there is none
+     */
+    public Checkpoint load(String key) {
+        final File file = file(key);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            return Checkpoint.fromJson(new JSONObject(FileUtils.readFileToString(file, StandardCharsets.UTF_8)));
+        } catch (IOException | JSONException e) {
+            FileUtils.deleteQuietly(file);
+            return null;
+        }
+    }
+
+    public void save(Checkpoint checkpoint) throws IOException {
+        checkpoint.setUpdated(System.currentTimeMillis());
+        final File file = file(checkpoint.getKey());
+        final File tempFile = new File(directory, checkpoint.getKey() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer content = ByteBuffer.wrap(checkpoint.toJson().toString().getBytes(StandardCharsets.UTF_8));
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+            channel.force(true);
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public void delete(String key) {
+        FileUtils.deleteQuietly(file(key));
+    }
+
+    /**
+     * @return all checkpoints, for example to complete moves that were interrupted
+     */
+    public List<Checkpoint> list() {
+        final List<Checkpoint> checkpoints = new ArrayList<>();
+        final File[] files = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (files != null) {
+            for (File file : files) {
+                final Checkpoint checkpoint = load(file.getName().substring(0, file.getName().length() - EXTENSION.length()));
+                if (checkpoint != null) checkpoints.add(checkpoint);
+            }
+        }
+        return checkpoints;
+    }
+
+    private File file(String key) {
+        return new File(directory, key + EXTENSION);
+    }
+}
@@ -0,0 +1,124 @@
+package de.yanwittmann.document.pipeline;
+
+import de.yanwittmann.document.dir.FileMover;
+import de.yanwittmann.document.model.DFileCategorization;
+import de.yanwittmann.document.pdf.DocumentFingerprint;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Moves documents so that a crash at any point neither loses nor duplicates them. The target is journaled in the
+ * checkpoint of the document before the move, and the move is marked as committed after it. The {@link FileMover} only
+ * lets a complete file appear at the target, so after a crash the journaled target either holds the whole document or
+ * nothing of it, apart from the partial copy an older version may have left there.
+ */
+public class CheckpointedMover {
+    private final CheckpointJournal checkpoints;
+    private final FileMover fileMover;
+
+    public CheckpointedMover(CheckpointJournal checkpoints, FileMover fileMover) {
+        this.checkpoints = checkpoints;
+        this.fileMover = fileMover;
+    }
+
+    /**
+     * If the journaled target of an earlier attempt already holds the content of the document, the earlier move got as
+     * far as copying the file and only the source is removed.
+     */
+    public Move move(Checkpoint checkpoint, File source, DFileCategorization categorization) throws IOException {
+        final Move move;
+        if (checkpoint.getMoveTarget() != null && isMovedTo(checkpoint, new File(checkpoint.getMoveTarget()))) {
+            Files.deleteIfExists(source.toPath());
+            move = new Move(new File(checkpoint.getMoveTarget()), true);
+        } else {
+            if (checkpoint.getMoveTarget() != null) {
+                discardIncompleteCopy(source, new File(checkpoint.getMoveTarget()));
+            }
+            move = new Move(fileMover.moveFile(source, categorization, target -> {
+                checkpoint.setMoveTarget(target.getAbsolutePath());
+                checkpoints.save(checkpoint);
+            }), false);
+        }
+        checkpoint.setStage("move");
+        checkpoint.setMoveCommitted(true);
+        checkpoints.save(checkpoint);
+        return move;
+    }
+
+    /**
+     * Finishes the moves that were interrupted after the file was copied to its target, whose source is therefore
+     * either gone or identical to the target. Documents that were not copied yet resume when they are processed again,
+     * what an interrupted copy left behind is removed.
+     *
+     * @return the moves that were completed or could not be completed, the checkpoints of both are deleted
+     */
+    public List<InterruptedMove> completeInterrupted() throws IOException {
+        final List<InterruptedMove> moves = new ArrayList<>();
+        for (Checkpoint checkpoint : checkpoints.list()) {
+            if (checkpoint.getMoveTarget() == null) continue;
+            final File source = new File(checkpoint.getSource());
+            final File target = new File(checkpoint.getMoveTarget());
+            if (!isMovedTo(checkpoint, target)) {
+                discardIncompleteCopy(source, target);
+                if (!source.exists()) {
+                    checkpoints.delete(checkpoint.getKey());
+                    moves.add(new InterruptedMove(checkpoint, source, null));
+                }
+                continue;
+            }
+            if (source.exists() && DocumentFingerprint.sha256(source).equals(checkpoint.getKey())) {
+                Files.delete(source.toPath());
+            }
+            checkpoints.delete(checkpoint.getKey());
+            moves.add(new InterruptedMove(checkpoint, source, target));
+        }
+        return moves;
+    }
+
+    private static boolean isMovedTo(Checkpoint checkpoint, File target) throws IOException {
+        return checkpoint.isMoveCommitted() && target.exists()
+                || target.exists() && DocumentFingerprint.sha256(target).equals(checkpoint.getKey());
+    }
+
+    /**
+     * Removes the temporary file of a copy that did not complete, and a partial copy at the target itself. A file at
+     * the target is only removed if its content is the beginning of the source, any other file was not written by the
+     * move and is kept.
+     */
+    private static void discardIncompleteCopy(File source, File target) throws IOException {
+        Files.deleteIfExists(FileMover.partFile(target).toPath());
+        if (target.exists() && source.exists() && target.length() < source.length() && isPrefixOf(target, source)) {
+            Files.delete(target.toPath());
+        }
+    }
+
+    private static boolean isPrefixOf(File prefix, File file) throws IOException {
+        try (InputStream prefixIn = new BufferedInputStream(Files.newInputStream(prefix.toPath()));
+             InputStream fileIn = new BufferedInputStream(Files.newInputStream(file.toPath()))) {
+            int b;
+            while ((b = prefixIn.read()) != -1) {
+                if (b != fileIn.read()) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @param earlier whether an earlier, interrupted attempt had already copied the file
+     */
+    public record Move(File target, boolean earlier) {
+    }
+
+    /**
+     * @param checkpoint the results of the document, for the bookkeeping that follows a move
+     * @param target     <code>null</code> if the file is neither at its source nor at its target
+     */
+    public record InterruptedMove(Checkpoint checkpoint, File source, File target) {
+    }
+}
@@ -0,0 +1,86 @@
+package de.yanwittmann.document.pipeline;
+
+import de.yanwittmann.document.ai.CompletionClient;
+import de.yanwittmann.document.model.ConsoleBlock;
+import de.yanwittmann.document.model.DFileCategorization;
+import de.yanwittmann.document.model.TimeStats;
+import de.yanwittmann.document.pdf.DocumentFingerprint;
+import lombok.Getter;
+import lombok.Setter;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * State of a single document while it travels through the processing stages.
+ */
+@Getter
+@Setter
+public class DocumentJob {
+    private static final AtomicInteger ids = new AtomicInteger();
+
+    /**
+     * Unique for the lifetime of the process, unlike the index, which starts over with every batch.
+     */
+    private final int id = ids.incrementAndGet();
+    private final int index;
+    private final int total;
+    private final File file;
+    private final ConsoleBlock console;
+    private final TimeStats time = new TimeStats();
+    private final Map<String, String> promptParameters = new HashMap<>();
+
+    private String ocrText;
+    private String summary;
+    private String filename;
+    private String path;
+    private DFileCategorization categorization;
+    private Throwable failure;
+    /**
+     * Set if the document is not processed any further without having failed, for example because it is a duplicate.
+     */
+    private String skipReason;
+    /**
+     * Set by the duplicate check, see <code>duplicates.check</code>.
+     */
+    private DocumentFingerprint fingerprint;
+    /**
+     * Set if the LLM steps of this document share a context, see {@link CompletionClient#openSession(String)}.
+     */
+    private CompletionClient.ChatSession session;
+    /**
+     * Path that is generated from the summary while the filename is generated, see <code>ai.speculative.path.enabled</code>.
+     */
+    private Future<String> speculativePath;
+    /**
+     * Whether the filename and path were taken from a similar document instead of the model, see
+     * <code>history.enabled</code>.
+     */
+    private boolean fromHistory;
+    /**
+     * Time spent on generating the filename and path with the model.
+     */
+    private long classificationNanos;
+    /**
+     * Set if the stage results are journaled, see <code>checkpoint.enabled</code>.
+     */
+    private Checkpoint checkpoint;
+
+    public DocumentJob(int index, int total, File file, ConsoleBlock console) {
+        this.index = index;
+        this.total = total;
+        this.file = file;
+        this.console = console;
+    }
+
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    public boolean isSkipped() {
+        return skipReason != null;
+    }
+}
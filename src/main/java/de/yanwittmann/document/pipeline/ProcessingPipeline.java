@@ -0,0 +1,175 @@
+package de.yanwittmann.document.pipeline;
+
+import de.yanwittmann.document.metrics.MetricsRegistry;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Runs documents through a sequence of stages. Every stage has its own worker threads and reads from a bounded queue,
+ * so a slow stage blocks the stages before it once its queue is full instead of letting work pile up in memory.
+ * <p>
+ * A document that fails or is skipped in any stage skips the remaining stages and is handed to the completion callback
+ * directly.
+ */
+public class ProcessingPipeline {
+
+    public interface StageTask {
+        void process(DocumentJob job) throws Exception;
+    }
+
+    private final int queueCapacity;
+    private final List<Stage> stages = new ArrayList<>();
+
+    public ProcessingPipeline(int queueCapacity) {
+        if (queueCapacity < 1) throw new IllegalArgumentException("queueCapacity must be positive");
+        this.queueCapacity = queueCapacity;
+    }
+
+    public ProcessingPipeline stage(String name, int workers, StageTask task) {
+        if (workers < 1) throw new IllegalArgumentException("Stage " + name + " needs at least one worker");
+        final BlockingQueue<Envelope> queue = new ArrayBlockingQueue<>(queueCapacity);
+        stages.add(new Stage(new StageStats(name, workers), task, queue));
+        MetricsRegistry.get().gauge("adc_pipeline_queue_depth", "Documents waiting in front of a pipeline stage", queue::size, "stage", name);
+        return this;
+    }
+
+    /**
+     * Processes all jobs and blocks until every one of them either passed the last stage or failed.
+     *
+     * @param jobs       the jobs to process, fed into the first stage in order
+     * @param onFinished called exactly once per job, never concurrently. An exception it throws is printed and does not
+     *                   stop the pipeline.
+     * @return the statistics of all stages, in stage order
+     */
+    public List<StageStats> run(List<DocumentJob> jobs, Consumer<DocumentJob> onFinished) throws InterruptedException {
+        if (stages.isEmpty()) throw new IllegalStateException("Pipeline has no stages");
+
+        final CountDownLatch remaining = new CountDownLatch(jobs.size());
+        final Consumer<DocumentJob> finish = job -> {
+            synchronized (this) {
+                try {
+                    onFinished.accept(job);
+                } catch (Throwable e) {
+                    // the worker that finished the job still has to process the jobs in its queue
+                    System.err.println("Failed to finish document " + job.getFile() + ": " + e);
+                } finally {
+                    remaining.countDown();
+                }
+            }
+        };
+
+        final AtomicInteger threadCounter = new AtomicInteger();
+        final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+            final Thread thread = new Thread(r, "pipeline-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            for (int i = 0; i < stages.size(); i++) {
+                final Stage stage = stages.get(i);
+                final Stage next = i + 1 < stages.size() ? stages.get(i + 1) : null;
+                for (int w = 0; w < stage.stats.getWorkers(); w++) {
+                    executor.submit(() -> work(stage, next, stage == stages.get(0), finish));
+                }
+            }
+
+            final long start = System.nanoTime();
+            for (DocumentJob job : jobs) {
+                stages.get(0).queue.put(new Envelope(job, System.nanoTime()));
+            }
+            remaining.await();
+
+            final long wallNanos = System.nanoTime() - start;
+            stages.forEach(stage -> stage.stats.wallNanos = wallNanos);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return stages.stream().map(stage -> stage.stats).toList();
+    }
+
+    /**
+     * @param first whether this is the first stage, which starts the time of the document, so that the time the jobs
+     *              wait to be taken up does not count towards it
+     */
+    private void work(Stage stage, Stage next, boolean first, Consumer<DocumentJob> finish) {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                final Envelope envelope = stage.queue.take();
+                final DocumentJob job = envelope.job;
+                final long taken = System.nanoTime();
+                stage.stats.waitNanos.add(taken - envelope.enqueuedAt);
+                if (first) {
+                    job.getTime().start();
+                }
+
+                try {
+                    stage.task.process(job);
+                } catch (Throwable e) {
+                    // an error would otherwise end the worker, and the job would never be finished
+                    job.setFailure(e);
+                } finally {
+                    stage.stats.busyNanos.add(System.nanoTime() - taken);
+                    stage.stats.processed.increment();
+                }
+
+                if (job.isFailed()) {
+                    stage.stats.failed.increment();
+                    finish.accept(job);
+                } else if (next == null || job.isSkipped()) {
+                    finish.accept(job);
+                } else {
+                    next.queue.put(new Envelope(job, System.nanoTime()));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private record Envelope(DocumentJob job, long enqueuedAt) {
+    }
+
+    private record Stage(StageStats stats, StageTask task, BlockingQueue<Envelope> queue) {
+    }
+
+    @Getter
+    public static class StageStats {
+        private final String name;
+        private final int workers;
+        private final LongAdder processed = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+        private final LongAdder busyNanos = new LongAdder();
+        private volatile long wallNanos;
+
+        private StageStats(String name, int workers) {
+            this.name = name;
+            this.workers = workers;
+        }
+
+        public long getAverageWaitNanos() {
+            final long count = processed.sum();
+            return count == 0 ? 0 : waitNanos.sum() / count;
+        }
+
+        public long getAverageBusyNanos() {
+            final long count = processed.sum();
+            return count == 0 ? 0 : busyNanos.sum() / count;
+        }
+
+        /**
+         * @return documents per minute that left this stage, measured over the whole run
+         */
+        public double getThroughputPerMinute() {
+            return wallNanos == 0 ? 0 : processed.sum() * 60_000_000_000.0 / wallNanos;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package de.yanwittmann.document.ai;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompletionClientTest {
+
+    @TempDir
+    Path directory;
+
+    private HttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @AfterEach
+    public void tearDown() {
+        if (server != null) {
+            EndpointPool.forBaseUrls(url()).close();
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void returnsCompletionThatCannotBeCached() throws Exception {
+        startServer();
+        final File cacheDirectory = directory.resolve("cache").toFile();
+        final CompletionCache cache = new CompletionCache(cacheDirectory, 1024 * 1024, 60_000, 10);
+        // a file where the cache directory should be makes every write fail
+        FileUtils.deleteDirectory(cacheDirectory);
+        Files.writeString(cacheDirectory.toPath(), "not a directory");
+
+        final CompletionClient client = CompletionClient.builder().baseUrl(url()).model("test").cache(cache).build();
+        assertEquals("answer", client.generateTextCompletion("prompt"));
+        assertEquals(1, requests.get());
+    }
+
+    private void startServer() throws Exception {
+        final byte[] body = new JSONObject().put("response", "answer").toString().getBytes(StandardCharsets.UTF_8);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/api/generate", exchange -> {
+            requests.incrementAndGet();
+            exchange.getRequestBody().readAllBytes();
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+    }
+
+    private String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+}
@@ -0,0 +1,277 @@
+package de.yanwittmann.document.ai;
+
+import com.sun.net.httpserver.HttpServer;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.json.JSONObject;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EndpointPoolTest {
+    private static final OkHttpClient client = new OkHttpClient.Builder().callTimeout(10, TimeUnit.SECONDS).build();
+
+    private final List<StubServer> servers = new ArrayList<>();
+    private final List<EndpointPool> pools = new ArrayList<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @AfterEach
+    public void tearDown() {
+        servers.forEach(StubServer::stop);
+        pools.forEach(EndpointPool::close);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void sendsRequestToEndpointWithFewestOutstanding() throws Exception {
+        final StubServer first = server();
+        final StubServer second = server();
+        final EndpointPool pool = pool(first.url() + "," + second.url(), 2, 0);
+
+        first.hold();
+        final Future<String> held = executor.submit(() -> pool.execute(EndpointPoolTest::get));
+        first.awaitRequests(1);
+
+        assertEquals(second.url(), pool.execute(EndpointPoolTest::get));
+        first.release();
+        assertEquals(first.url(), held.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void waitsForFreeSlotAtLimitOfEndpoint() throws Exception {
+        final StubServer server = server();
+        final EndpointPool pool = pool(server.url() + "|1", 4, 0);
+
+        server.hold();
+        final Future<String> held = executor.submit(() -> pool.execute(EndpointPoolTest::get));
+        server.awaitRequests(1);
+        final Future<String> waiting = executor.submit(() -> pool.execute(EndpointPoolTest::get));
+
+        assertThrows(TimeoutException.class, () -> waiting.get(300, TimeUnit.MILLISECONDS));
+        assertEquals(1, server.requests.get());
+        server.release();
+        held.get(10, TimeUnit.SECONDS);
+        waiting.get(10, TimeUnit.SECONDS);
+        assertEquals(1, server.maxConcurrent.get());
+    }
+
+    @Test
+    public void retriesOnOtherEndpointAndTakesFailingOneOutOfRotation() throws Exception {
+        final StubServer failing = server();
+        final StubServer working = server();
+        failing.status = 500;
+        final EndpointPool pool = pool(failing.url() + "," + working.url(), 2, 0);
+
+        assertEquals(working.url(), pool.execute(EndpointPoolTest::get));
+        assertTrue(pool.getEndpoints().get(0).isHealthy());
+        assertEquals(working.url(), pool.execute(EndpointPoolTest::get));
+        assertFalse(pool.getEndpoints().get(0).isHealthy());
+
+        assertEquals(working.url(), pool.execute(EndpointPoolTest::get));
+        assertEquals(2, failing.requests.get());
+        assertEquals(3, working.requests.get());
+    }
+
+    @Test
+    public void putsEndpointBackOnceHealthCheckSucceeds() throws Exception {
+        final StubServer recovering = server();
+        final StubServer working = server();
+        recovering.status = 503;
+        final EndpointPool pool = pool(recovering.url() + "," + working.url(), 1, 50);
+
+        pool.execute(EndpointPoolTest::get);
+        assertFalse(pool.getEndpoints().get(0).isHealthy());
+
+        recovering.status = 200;
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+            while (!pool.getEndpoints().get(0).isHealthy()) Thread.sleep(10);
+        });
+        assertEquals(recovering.url(), pool.execute(EndpointPoolTest::get));
+    }
+
+    @Test
+    public void failsBadRequestWithoutRetry() {
+        final StubServer rejecting = server();
+        final StubServer working = server();
+        rejecting.status = 400;
+        final EndpointPool pool = pool(rejecting.url() + "," + working.url(), 1, 0);
+
+        final EndpointPool.ResponseException exception = assertThrows(EndpointPool.ResponseException.class, () -> pool.execute(EndpointPoolTest::get));
+        assertEquals(400, exception.getCode());
+        assertEquals(0, working.requests.get());
+        assertTrue(pool.getEndpoints().get(0).isHealthy());
+    }
+
+    @Test
+    public void staysOnPreferredEndpointUntilItIsUnhealthy() throws Exception {
+        final StubServer preferred = server();
+        final StubServer other = server();
+        final EndpointPool pool = pool(preferred.url() + "," + other.url(), 1, 0);
+
+        preferred.hold();
+        final Future<String> held = executor.submit(() -> pool.execute(preferred.url(), EndpointPoolTest::get));
+        preferred.awaitRequests(1);
+        final Future<String> second = executor.submit(() -> pool.execute(preferred.url(), EndpointPoolTest::get));
+        preferred.awaitRequests(2);
+        preferred.release();
+        assertEquals(preferred.url(), held.get(10, TimeUnit.SECONDS));
+        assertEquals(preferred.url(), second.get(10, TimeUnit.SECONDS));
+        assertEquals(0, other.requests.get());
+
+        preferred.status = 500;
+        assertEquals(other.url(), pool.execute(preferred.url(), EndpointPoolTest::get));
+        assertFalse(pool.getEndpoints().get(0).isHealthy());
+        assertEquals(other.url(), pool.execute(preferred.url(), EndpointPoolTest::get));
+        assertEquals(3, preferred.requests.get());
+    }
+
+    @Test
+    public void keepsAllRequestsOfSessionOnOneEndpoint() throws Exception {
+        final StubServer first = server();
+        final StubServer second = server();
+        final String baseUrls = first.url() + "," + second.url();
+        final EndpointPool pool = EndpointPool.forBaseUrls(baseUrls);
+        pools.add(pool);
+        final CompletionClient client = CompletionClient.builder().baseUrl(baseUrls).model("test").build();
+
+        // the first endpoint is busy when the session starts, so the session begins on the second one
+        first.hold();
+        final Future<String> busy = executor.submit(() -> pool.execute(EndpointPoolTest::get));
+        first.awaitRequests(1);
+        final CompletionClient.ChatSession session = client.openSession("context");
+        assertEquals("answer", session.complete("summary").text());
+        first.release();
+        busy.get(10, TimeUnit.SECONDS);
+
+        // both endpoints are idle now, the pool alone would pick the first one
+        assertEquals(first.url(), pool.execute(EndpointPoolTest::get));
+        for (String step : List.of("filename", "path")) {
+            assertEquals("answer", session.complete(step).text());
+        }
+        assertEquals(3, second.requests.get());
+        assertEquals(2, first.requests.get());
+    }
+
+    @Test
+    public void abortsRequestWhenThreadIsInterrupted() throws Exception {
+        final StubServer first = server();
+        final StubServer second = server();
+        final String baseUrls = first.url() + "," + second.url();
+        final EndpointPool pool = EndpointPool.forBaseUrls(baseUrls);
+        pools.add(pool);
+        final CompletionClient client = CompletionClient.builder().baseUrl(baseUrls).model("test").build();
+
+        first.hold();
+        final Future<String> request = executor.submit(() -> client.openSession("context").complete("path").text());
+        first.awaitRequests(1);
+        request.cancel(true);
+
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+            while (pool.getEndpoints().get(0).getOutstanding() > 0) Thread.sleep(10);
+        });
+        assertTrue(pool.getEndpoints().get(0).isHealthy());
+        assertEquals(0, pool.getEndpoints().get(0).getFailed());
+        assertEquals(0, second.requests.get());
+    }
+
+    private static String get(String baseUrl) throws IOException {
+        try (Response response = client.newCall(new Request.Builder().url(baseUrl + "/api/generate").build()).execute()) {
+            if (!response.isSuccessful()) {
+                throw new EndpointPool.ResponseException(response.code(), "Request failed: " + response);
+            }
+            return baseUrl;
+        }
+    }
+
+    private EndpointPool pool(String baseUrls, int failureThreshold, long healthIntervalMillis) {
+        final EndpointPool pool = new EndpointPool(baseUrls, 2, failureThreshold, healthIntervalMillis);
+        pools.add(pool);
+        return pool;
+    }
+
+    private StubServer server() {
+        try {
+            final StubServer server = new StubServer();
+            servers.add(server);
+            return server;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Answers every request with {@link #status} and, if successful, a chat response. Requests to the API can be held until {@link #release()}, the health
+     * check on <code>/api/version</code> is always answered right away.
+     */
+    private static class StubServer {
+        private final HttpServer server;
+        private final ExecutorService handlers = Executors.newCachedThreadPool();
+        private final AtomicInteger requests = new AtomicInteger();
+        private final AtomicInteger concurrent = new AtomicInteger();
+        private final AtomicInteger maxConcurrent = new AtomicInteger();
+        private volatile int status = 200;
+        private final byte[] body = new JSONObject().put("message", new JSONObject().put("content", "answer")).toString().getBytes(StandardCharsets.UTF_8);
+        private volatile CountDownLatch gate = new CountDownLatch(0);
+
+        private StubServer() throws IOException {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.setExecutor(handlers);
+            server.createContext("/", exchange -> {
+                if (!exchange.getRequestURI().getPath().equals("/api/version")) {
+                    requests.incrementAndGet();
+                    maxConcurrent.accumulateAndGet(concurrent.incrementAndGet(), Math::max);
+                    try {
+                        gate.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        concurrent.decrementAndGet();
+                    }
+                }
+                exchange.getRequestBody().readAllBytes();
+                if (status == 200) {
+                    exchange.sendResponseHeaders(status, body.length);
+                    exchange.getResponseBody().write(body);
+                } else {
+                    exchange.sendResponseHeaders(status, -1);
+                }
+                exchange.close();
+            });
+            server.start();
+        }
+
+        private String url() {
+            return "http://127.0.0.1:" + server.getAddress().getPort();
+        }
+
+        private void hold() {
+            gate = new CountDownLatch(1);
+        }
+
+        private void release() {
+            gate.countDown();
+        }
+
+        private void awaitRequests(int count) throws InterruptedException {
+            for (int i = 0; i < 1000 && requests.get() < count; i++) Thread.sleep(10);
+            assertTrue(requests.get() >= count, "requests did not arrive");
+        }
+
+        private void stop() {
+            release();
+            server.stop(0);
+            handlers.shutdownNow();
+        }
+    }
+}
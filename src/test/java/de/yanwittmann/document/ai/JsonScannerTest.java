@@ -0,0 +1,144 @@
+package de.yanwittmann.document.ai;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonScannerTest {
+
+    /**
+     * Pieces the random inputs are made of: brackets and quotes in every combination, valid and invalid scalars, escapes
+     * and brackets hidden in strings.
+     */
+    private static final String[] PARTS = {"{", "}", "[", "]", "\"", "\"path\"", ":", ",", " ", "\n", "1", "-0.5e3", "01",
+            "true", "nul", "x", "\\", "\\\"", "\\u00e4", "\\u00g", "{\"a\":1}", "[1,2]", "think", "\"{\"", "\"[\""};
+
+    @Test
+    public void matchesLeftmostValidContainer() {
+        final Random random = new Random(42);
+        for (int run = 0; run < 200_000; run++) {
+            final StringBuilder text = new StringBuilder();
+            final int parts = random.nextInt(14);
+            for (int i = 0; i < parts; i++) {
+                text.append(PARTS[random.nextInt(PARTS.length)]);
+            }
+            for (int mode = 0; mode < 3; mode++) {
+                final boolean objects = mode != 1;
+                final boolean arrays = mode != 0;
+                assertArrayEquals(Reference.find(text.toString(), objects, arrays), JsonScanner.find(text, 0, objects, arrays),
+                        () -> "objects=" + objects + ", arrays=" + arrays + ": " + text);
+            }
+        }
+    }
+
+    @Test
+    public void findsContainers() {
+        assertEquals("{\"a\":\"x\\\\\"}", ChatUtil.extractJsonObject("{\"a\":\"x\\\\\"}").toString());
+        assertEquals("{\"a\":1}", ChatUtil.extractJsonObject("{{\"a\":1}}").toString());
+        assertEquals("{\"path\":\"x\"}", ChatUtil.extractJsonObject("[{\"path\":\"x\"}]").toString());
+        assertEquals("{\"path\":\"a/b\"}", ChatUtil.extractJsonObject("He said \"use {braces}\" then {\"path\": \"a/b\"}").toString());
+        assertEquals("{\"path\":\"a\"}", ChatUtil.extractJsonObject("[\"see {\"path\": \"a\"}").toString());
+        assertEquals("[1,2]", ChatUtil.extractJsonArray("{\"a\": [1, 2] x").toString());
+        assertNull(ChatUtil.extractJsonObject("[\"{\"]"));
+    }
+
+    @Test
+    public void scansUnterminatedCandidatesInLinearTime() {
+        for (String part : new String[]{"[\"{\",", "{\"{\":"}) {
+            final String text = part.repeat(1_000_000 / part.length());
+            assertTimeoutPreemptively(Duration.ofSeconds(5), () -> assertNull(JsonScanner.find(text, 0, true, true)), part);
+        }
+    }
+
+    /**
+     * Tries to parse a container at every bracket from left to right, with the same rules as org.json.
+     */
+    private static class Reference {
+        private static final Pattern NUMBER = Pattern.compile("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?");
+
+        private final String text;
+
+        private Reference(String text) {
+            this.text = text;
+        }
+
+        static int[] find(String text, boolean objects, boolean arrays) {
+            final Reference reference = new Reference(text);
+            for (int i = 0; i < text.length(); i++) {
+                final char c = text.charAt(i);
+                if (c == '{' && objects || c == '[' && arrays) {
+                    final int end = reference.value(i);
+                    if (end > 0) return new int[]{i, end};
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return the end of the value starting at <code>i</code>, or <code>-1</code>
+         */
+        private int value(int i) {
+            if (i >= text.length()) return -1;
+            final char c = text.charAt(i);
+            if (c == '{' || c == '[') {
+                final boolean object = c == '{';
+                i = whitespace(i + 1);
+                if (i < text.length() && text.charAt(i) == (object ? '}' : ']')) return i + 1;
+                while (true) {
+                    if (object) {
+                        i = string(i);
+                        if (i < 0) return -1;
+                        i = whitespace(i);
+                        if (i >= text.length() || text.charAt(i) != ':') return -1;
+                        i = whitespace(i + 1);
+                    }
+                    i = value(i);
+                    if (i < 0) return -1;
+                    i = whitespace(i);
+                    if (i >= text.length()) return -1;
+                    if (text.charAt(i) == (object ? '}' : ']')) return i + 1;
+                    if (text.charAt(i) != ',') return -1;
+                    i = whitespace(i + 1);
+                }
+            }
+            if (c == '"') return string(i);
+            for (String literal : new String[]{"true", "false", "null"}) {
+                if (text.startsWith(literal, i)) return i + literal.length();
+            }
+            final Matcher number = NUMBER.matcher(text).region(i, text.length());
+            return number.lookingAt() ? number.end() : -1;
+        }
+
+        private int string(int i) {
+            if (i >= text.length() || text.charAt(i) != '"') return -1;
+            for (i++; i < text.length(); i++) {
+                final char c = text.charAt(i);
+                if (c == '"') return i + 1;
+                if (c == '\n' || c == '\r' || c == 0) return -1;
+                if (c == '\\') {
+                    if (++i >= text.length()) return -1;
+                    final char escaped = text.charAt(i);
+                    if (escaped == 'u') {
+                        for (int k = 1; k <= 4; k++) {
+                            if (i + k >= text.length() || Character.digit(text.charAt(i + k), 16) < 0) return -1;
+                        }
+                        i += 4;
+                    } else if ("\"\\/bfnrt".indexOf(escaped) < 0) {
+                        return -1;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        private int whitespace(int i) {
+            while (i < text.length() && " \t\n\r".indexOf(text.charAt(i)) >= 0) i++;
+            return i;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package de.yanwittmann.document.ai;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PromptTemplateTest {
+
+    @Test
+    public void leavesPlaceholdersWithoutValueInInlineTemplates() {
+        assertEquals("Hello Ada, [[unknown]]", ChatUtil.replacePlaceholders("Hello [[name]], [[unknown]]", Map.of("name", "Ada")));
+    }
+
+    @Test
+    public void checksOnlyRegisteredTemplates() throws Exception {
+        final String path = "templates/checked-01.txt";
+        final IllegalStateException unknown = assertThrows(IllegalStateException.class,
+                () -> PromptTemplate.checkPlaceholders(List.of(path), Set.of("ocr_text")));
+        assertTrue(unknown.getMessage().contains("[reader]"));
+
+        PromptTemplate.checkPlaceholders(List.of(path), Set.of("ocr_text", "reader"));
+        assertEquals("Summarize text for you.", ChatUtil.fillTemplateFromClasspath(path, Map.of("ocr_text", "text", "reader", "you")));
+        assertThrows(IllegalArgumentException.class, () -> ChatUtil.fillTemplateFromClasspath(path, Map.of("ocr_text", "text")));
+
+        // inline templates stay unchecked
+        assertEquals("[[reader]] [[other]]", PromptTemplate.parse("[[reader]] [[other]]").render(Map.of()));
+    }
+}
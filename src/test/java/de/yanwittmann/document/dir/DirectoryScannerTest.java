@@ -0,0 +1,47 @@
+package de.yanwittmann.document.dir;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DirectoryScannerTest {
+
+    @TempDir
+    Path root;
+
+    @Test
+    public void changesVersionOnlyWhenTheTreeChanges() throws Exception {
+        final Path bills = Files.createDirectories(root.resolve("Bills"));
+        final Path bill = Files.writeString(bills.resolve("2024-01-01 Bill.pdf"), "a");
+        final Path docinfo = Files.writeString(bills.resolve(".docinfo"), "Monthly bills");
+        final DirectoryScanner scanner = new DirectoryScanner(root.toString());
+        final PromptContext context = scanner.getPromptContext();
+        final long version = scanner.getVersion();
+
+        Files.writeString(bill, "ab");
+        scanner.applyChange(bill.toFile());
+        Files.writeString(docinfo, "Monthly bills");
+        scanner.applyChange(docinfo.toFile());
+        scanner.applyChange(bills.resolve("never existed.pdf").toFile());
+        assertEquals(version, scanner.getVersion());
+        assertSame(context, scanner.getPromptContext());
+
+        Files.writeString(docinfo, "Monthly and yearly bills");
+        scanner.applyChange(docinfo.toFile());
+        assertEquals(version + 1, scanner.getVersion());
+
+        final File added = Files.writeString(bills.resolve("2024-02-01 Bill.pdf"), "b").toFile();
+        scanner.applyChange(added);
+        assertEquals(version + 2, scanner.getVersion());
+
+        Files.delete(bill);
+        scanner.applyChange(bill.toFile());
+        assertEquals(version + 3, scanner.getVersion());
+        assertNotSame(context, scanner.getPromptContext());
+    }
+}
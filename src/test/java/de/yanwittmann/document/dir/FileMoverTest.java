@@ -0,0 +1,35 @@
+package de.yanwittmann.document.dir;
+
+import de.yanwittmann.document.model.DFileCategorization;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileMoverTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void neverReplacesFileCreatedDuringMove() throws Exception {
+        final Path source = Files.writeString(directory.resolve("scan.pdf"), "document");
+        final Path archive = directory.resolve("archive");
+        final Path taken = archive.resolve("Bills").resolve("Bill.pdf");
+
+        final File target = new FileMover(archive.toString()).moveFile(source.toFile(), new DFileCategorization("Bills", "Bill.pdf"), targetFile -> {
+            // another process takes the name after it was checked
+            if (!Files.exists(taken)) Files.writeString(taken, "other");
+        });
+
+        assertEquals("Bill_1.pdf", target.getName());
+        assertEquals("other", Files.readString(taken));
+        assertEquals("document", Files.readString(target.toPath()));
+        assertFalse(Files.exists(source));
+        assertFalse(Files.exists(FileMover.partFile(taken.toFile()).toPath()));
+    }
+}
@@ -0,0 +1,76 @@
+package de.yanwittmann.document.history;
+
+import de.yanwittmann.document.model.DFileCategorization;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClassificationHistoryTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void compactsTheFileToTheNewestEntries() throws Exception {
+        final File file = directory.resolve("history.jsonl").toFile();
+        final ClassificationHistory history = new ClassificationHistory(file, 0.8, 3);
+        for (int i = 0; i < 20; i++) {
+            history.record(text(i), new DFileCategorization("Bills/" + i, "2024-01-01 Bill " + i + ".pdf"), 1000, "bill" + i + ".pdf");
+            assertTrue(lines(file).size() <= 6, "file has " + lines(file).size() + " lines after " + (i + 1) + " records");
+        }
+
+        final List<String> lines = lines(file);
+        assertTrue(lines.get(lines.size() - 1).contains("bill19.pdf"));
+        final ClassificationHistory reloaded = new ClassificationHistory(file, 0.8, 3);
+        for (int i = 17; i < 20; i++) {
+            final ClassificationHistory.Match match = reloaded.findMatch(text(i));
+            assertNotNull(match, "entry " + i);
+            assertEquals("Bills/" + i, match.entry().path());
+            assertTrue(match.entry().time() > 0);
+        }
+        assertNull(reloaded.findMatch(text(10)));
+    }
+
+    @Test
+    public void compactsAnOversizedFileWhenLoading() throws Exception {
+        final File file = directory.resolve("history.jsonl").toFile();
+        final ClassificationHistory history = new ClassificationHistory(file, 0.8, 20);
+        for (int i = 0; i < 20; i++) {
+            history.record(text(i), new DFileCategorization("Bills", "Bill " + i + ".pdf"), 1000, null);
+        }
+        final long time = new ClassificationHistory(file, 0.8, 20).findMatch(text(15)).entry().time();
+
+        new ClassificationHistory(file, 0.8, 5);
+        assertEquals(5, lines(file).size());
+        final ClassificationHistory reloaded = new ClassificationHistory(file, 0.8, 20);
+        assertNull(reloaded.findMatch(text(5)));
+        assertEquals(time, reloaded.findMatch(text(15)).entry().time());
+    }
+
+    private static List<String> lines(File file) throws Exception {
+        return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Digits count as the same character for the signature, so the documents differ in random letters.
+     */
+    private static String text(int document) {
+        final Random random = new Random(document);
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 60; i++) {
+            for (int c = 0; c < 6; c++) {
+                text.append((char) ('a' + random.nextInt(26)));
+            }
+            text.append(' ');
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,183 @@
+package de.yanwittmann.document.pipeline;
+
+import de.yanwittmann.document.dir.FileMover;
+import de.yanwittmann.document.model.DFileCategorization;
+import de.yanwittmann.document.pdf.DocumentFingerprint;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CheckpointedMoverTest {
+    private static final long TTL = 60 * 60 * 1000;
+    private static final DFileCategorization CATEGORIZATION = new DFileCategorization("Bills/2024", "2024-01-01 Bill.pdf");
+
+    @TempDir
+    private Path directory;
+
+    private File source;
+    private File root;
+    private File target;
+    private File journalDirectory;
+    private byte[] content;
+    private String key;
+
+    /**
+     * The state on disk after a crash at each step of a move.
+     */
+    private enum Crash {
+        /**
+         * The target was journaled, nothing was moved yet.
+         */
+        JOURNALED,
+        /**
+         * The copy to another file system was interrupted.
+         */
+        COPYING,
+        /**
+         * The copy to another file system completed but was not renamed to the target yet.
+         */
+        COPIED,
+        /**
+         * A move of an older version, which copied straight to the target, was interrupted.
+         */
+        COPYING_TO_TARGET,
+        /**
+         * The file is at the target, but the source was not deleted yet.
+         */
+        RENAMED,
+        /**
+         * The move completed, but was not journaled as committed yet.
+         */
+        SOURCE_DELETED,
+        /**
+         * The move was journaled as committed, but the checkpoint was not deleted yet.
+         */
+        COMMITTED
+    }
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        source = directory.resolve("inbox/scan.pdf").toFile();
+        root = directory.resolve("archive").toFile();
+        target = new File(root, CATEGORIZATION.getPath() + "/" + CATEGORIZATION.getFilename()).getAbsoluteFile();
+        journalDirectory = directory.resolve("checkpoints").toFile();
+        content = new byte[100_000];
+        new Random(7).nextBytes(content);
+        Files.createDirectories(source.getParentFile().toPath());
+        Files.write(source.toPath(), content);
+        key = DocumentFingerprint.sha256(source);
+    }
+
+    @Test
+    public void movesAndCommits() throws IOException {
+        final CheckpointJournal journal = new CheckpointJournal(journalDirectory, TTL);
+        final Checkpoint checkpoint = checkpoint();
+
+        final CheckpointedMover.Move move = new CheckpointedMover(journal, new FileMover(root.getPath())).move(checkpoint, source, CATEGORIZATION);
+
+        assertEquals(target, move.target().getAbsoluteFile());
+        assertFalse(move.earlier());
+        assertTrue(journal.load(key).isMoveCommitted());
+        assertArchivedOnce();
+    }
+
+    @ParameterizedTest
+    @EnumSource(Crash.class)
+    public void recoversFromCrash(Crash crash) throws IOException {
+        simulate(crash);
+
+        // the next start completes what it can, the document resumes when it is processed again
+        final CheckpointJournal journal = new CheckpointJournal(journalDirectory, TTL);
+        final CheckpointedMover mover = new CheckpointedMover(journal, new FileMover(root.getPath()));
+        final List<CheckpointedMover.InterruptedMove> completed = mover.completeInterrupted();
+        if (source.exists()) {
+            assertTrue(completed.isEmpty());
+            final Checkpoint checkpoint = journal.load(key);
+            assertNotNull(checkpoint);
+            checkpoint.setSource(source.getAbsolutePath());
+            mover.move(checkpoint, source, CATEGORIZATION);
+        } else {
+            assertEquals(1, completed.size());
+            assertEquals(target, completed.get(0).target().getAbsoluteFile());
+            assertNull(journal.load(key));
+        }
+
+        assertArchivedOnce();
+    }
+
+    @Test
+    public void keepsForeignFileAtJournaledTarget() throws IOException {
+        simulate(Crash.JOURNALED);
+        final byte[] foreign = Arrays.copyOf(content, 1000);
+        foreign[0]++;
+        Files.createDirectories(target.getParentFile().toPath());
+        Files.write(target.toPath(), foreign);
+
+        final CheckpointJournal journal = new CheckpointJournal(journalDirectory, TTL);
+        final CheckpointedMover mover = new CheckpointedMover(journal, new FileMover(root.getPath()));
+        mover.completeInterrupted();
+        final CheckpointedMover.Move move = mover.move(journal.load(key), source, CATEGORIZATION);
+
+        assertArrayEquals(foreign, Files.readAllBytes(target.toPath()));
+        assertEquals("2024-01-01 Bill_1.pdf", move.target().getName());
+        assertArrayEquals(content, Files.readAllBytes(move.target().toPath()));
+    }
+
+    private void simulate(Crash crash) throws IOException {
+        final CheckpointJournal journal = new CheckpointJournal(journalDirectory, TTL);
+        final Checkpoint checkpoint = checkpoint();
+        checkpoint.setMoveTarget(target.getPath());
+        journal.save(checkpoint);
+
+        Files.createDirectories(target.getParentFile().toPath());
+        switch (crash) {
+            case JOURNALED -> {
+            }
+            case COPYING -> Files.write(FileMover.partFile(target).toPath(), Arrays.copyOf(content, content.length / 2));
+            case COPIED -> Files.write(FileMover.partFile(target).toPath(), content);
+            case COPYING_TO_TARGET -> Files.write(target.toPath(), Arrays.copyOf(content, content.length / 3));
+            case RENAMED -> Files.write(target.toPath(), content);
+            case SOURCE_DELETED -> Files.move(source.toPath(), target.toPath());
+            case COMMITTED -> {
+                Files.move(source.toPath(), target.toPath());
+                checkpoint.setMoveCommitted(true);
+                journal.save(checkpoint);
+            }
+        }
+    }
+
+    private Checkpoint checkpoint() {
+        final Checkpoint checkpoint = new Checkpoint(key);
+        checkpoint.setSource(source.getAbsolutePath());
+        checkpoint.setStage("place");
+        checkpoint.setFilename(CATEGORIZATION.getFilename());
+        checkpoint.setPath(CATEGORIZATION.getPath());
+        return checkpoint;
+    }
+
+    /**
+     * The document is at the target and nowhere else, and nothing else was left in the archive.
+     */
+    private void assertArchivedOnce() throws IOException {
+        assertFalse(source.exists());
+        final List<Path> files;
+        try (Stream<Path> walk = Files.walk(root.toPath())) {
+            files = walk.filter(Files::isRegularFile).toList();
+        }
+        assertEquals(List.of(target.toPath()), files);
+        assertArrayEquals(content, Files.readAllBytes(target.toPath()));
+    }
+}
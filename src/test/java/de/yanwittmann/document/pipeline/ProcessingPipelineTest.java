@@ -0,0 +1,72 @@
+package de.yanwittmann.document.pipeline;
+
+import de.yanwittmann.document.model.ConsoleBlock;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProcessingPipelineTest {
+
+    @Test
+    public void finishesJobsAfterAnErrorInAStage() {
+        final List<DocumentJob> jobs = IntStream.range(0, 3)
+                .mapToObj(i -> new DocumentJob(i, 3, new File("document-" + i + ".pdf"), ConsoleBlock.buffered()))
+                .toList();
+        final List<DocumentJob> finished = new ArrayList<>();
+
+        final ProcessingPipeline pipeline = new ProcessingPipeline(1)
+                .stage("fail", 1, job -> {
+                    if (job.getIndex() == 0) throw new StackOverflowError("first document");
+                })
+                .stage("pass", 1, job -> job.setFilename("done"));
+        final List<ProcessingPipeline.StageStats> stats = assertTimeoutPreemptively(Duration.ofSeconds(10), () -> pipeline.run(jobs, finished::add));
+
+        assertEquals(3, finished.size());
+        assertInstanceOf(StackOverflowError.class, jobs.get(0).getFailure());
+        assertNull(jobs.get(0).getFilename());
+        assertEquals("done", jobs.get(1).getFilename());
+        assertEquals("done", jobs.get(2).getFilename());
+        assertEquals(1, stats.get(0).getFailed().sum());
+    }
+
+    @Test
+    public void finishesRemainingJobsAfterTheCallbackThrows() {
+        final List<DocumentJob> jobs = jobs(4);
+        final List<DocumentJob> finished = new ArrayList<>();
+
+        final ProcessingPipeline pipeline = new ProcessingPipeline(1).stage("pass", 1, job -> job.setFilename("done"));
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> pipeline.run(jobs, job -> {
+            finished.add(job);
+            throw new IllegalStateException("callback of " + job.getIndex());
+        }));
+
+        assertEquals(4, finished.size());
+    }
+
+    @Test
+    public void startsDocumentTimeWhenTheFirstStageTakesTheJob() throws InterruptedException {
+        final List<DocumentJob> jobs = jobs(3);
+        final List<Long> nanos = new ArrayList<>();
+
+        new ProcessingPipeline(3)
+                .stage("slow", 1, job -> Thread.sleep(200))
+                .run(jobs, job -> nanos.add(job.getTime().stop()));
+
+        // the last job waited about 400ms for the stage, which is not part of its own time
+        for (long time : nanos) {
+            assertTrue(time < 350_000_000L, "document took " + time / 1_000_000 + "ms");
+        }
+    }
+
+    private static List<DocumentJob> jobs(int count) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> new DocumentJob(i, count, new File("document-" + i + ".pdf"), ConsoleBlock.buffered()))
+                .toList();
+    }
+}